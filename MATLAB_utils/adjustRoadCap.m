@@ -1,7 +1,11 @@
-function [adjustedRoadCap] = adjustRoadCap(RoadCap, LinkFreeFlow, LinkLength)
+function [adjustedRoadCap] = adjustRoadCap(RoadCap, LinkFreeFlow, LinkLength, vehicledata)
 
-load('linkMap.mat');
-load('vehicledata.mat');
+load(fullfile(pwd, 'linkMap.mat')); % written by the Java side for this session
+if nargin < 4
+    vehicledata = [];
+end
+vehicledata = loadVehicleData(vehicledata);
+vehlocations = vehicledata.vehlocations;
 linkMap = linkMap';
 
 usedRoadCap = zeros(size(RoadCap,1), size(RoadCap,1));
@@ -1,4 +1,4 @@
-function [SourcesReb, SourceFlows, SinksReb, SinkFlows] = calcFlowsFromDistribution(threshold)
+function [SourcesReb, SourceFlows, SinksReb, SinkFlows] = calcFlowsFromDistribution(threshold, vehicledata)
 
 % this function calculates rebalancing sources, sinks and flows based 
 % on the vehicle distribution given by the AMoDTaxiOptimizer.java class
@@ -8,7 +8,12 @@ if flagdistributedepartures
     disp('WARNING: randomizing start location in each cell in calcFlowsFromDistribution')
 end
 
-load('vehicledata.mat');
+if nargin < 2
+    vehicledata = [];
+end
+vehicledata = loadVehicleData(vehicledata);
+vehdistribution = vehicledata.vehdistribution;
+totalvehicles = vehicledata.totalvehicles;
 load('station_node_map_NYOSM.mat');
 
 SourcesReb = [];
@@ -28,7 +33,7 @@ load('station_node_map_NYOSM.mat');
 
 idealDistribution = ceil(ones(length(vehdistribution), 1)*totalvehicles/sum(availablestations));
 
-[vexcess, vdesired] = calcLegacyDistribution;
+[vexcess, vdesired] = calcLegacyDistribution(vehicledata);
 % positive entries represent rebalancing sources, negative entries represent
 % rebalancing sinks
 
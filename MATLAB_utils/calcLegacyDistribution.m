@@ -1,6 +1,12 @@
-function [vexcess, vdesired] = calcLegacyDistribution
-
-load('vehicledata.mat');
+function [vexcess, vdesired] = calcLegacyDistribution(vehicledata)
+
+if nargin < 1
+    vehicledata = [];
+end
+vehicledata = loadVehicleData(vehicledata);
+vehdistribution = vehicledata.vehdistribution;
+totalvehicles = vehicledata.totalvehicles;
+waitingpassengers = vehicledata.waitingpassengers;
 load('station_node_map_NYOSM.mat');
 
 % some stations don't correspond to any nodes, so we keep track of
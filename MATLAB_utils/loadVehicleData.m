@@ -0,0 +1,15 @@
+function vehicledata = loadVehicleData(vehicledata)
+
+% this function returns the vehicle state handed over by the
+% AMoDTaxiOptimizer.java class. If the state was passed in memory through
+% the MATLAB session it is returned as is, otherwise it is read from
+% vehicledata.mat in the working directory of the session. The file is not
+% looked up on the MATLAB path, where a stale copy could be found.
+
+if nargin < 1 || isempty(vehicledata)
+    datafile = fullfile(pwd, 'vehicledata.mat');
+    if ~exist(datafile, 'file')
+        error('loadVehicleData:missing', 'No vehicle data passed in and no %s', datafile);
+    end
+    vehicledata = load(datafile);
+end
@@ -0,0 +1,36 @@
+function [nodes, offsets, flows] = pathsToCSR(paths)
+
+% this function turns a cell of paths (each a cell holding a matrix whose
+% first column is the list of nodes and whose second column, if any, is the
+% flow) into compressed sparse row form, which AMoDPathBuffer.java reads without
+% going through one cell per path:
+% nodes   - the nodes of all paths, concatenated (int32)
+% offsets - path i is nodes(offsets(i)+1:offsets(i+1)) (int32, starts at 0)
+% flows   - the flow of each path (1 for paths without a flow column, such
+%           as the sampled passenger paths of TISamplePaxPaths.m)
+% Empty paths are skipped.
+
+numpaths = numel(paths);
+lengths = zeros(numpaths, 1);
+flows = zeros(numpaths, 1);
+for i = 1:numpaths
+    if ~isempty(paths{i})
+        lengths(i) = size(paths{i}{1}, 1);
+        if size(paths{i}{1}, 2) < 2
+            flows(i) = 1;
+        else
+            flows(i) = paths{i}{1}(end, 2);
+        end
+    end
+end
+nonempty = lengths > 0;
+lengths = lengths(nonempty);
+flows = flows(nonempty);
+offsets = int32([0; cumsum(lengths)]);
+
+nodes = zeros(offsets(end), 1, 'int32');
+k = 1;
+for i = find(nonempty)'
+    nodes(offsets(k)+1:offsets(k+1)) = paths{i}{1}(:, 1);
+    k = k + 1;
+end
@@ -1,7 +1,23 @@
-function [ passpaths, rebpaths ] = runOptimization( startTime, timeHorizon, RebWeight, threshold, legacyRebalance, filename )
+function [ passpaths, rebpaths, numvehicles, rebalanceQueue ] = runOptimization( startTime, timeHorizon, RebWeight, threshold, legacyRebalance, filename, vehicledata )
 
 %for debug: filename is /home/frossi2/SVN/code/AMoD_congestion/AMoD_taxi/src/main/resources/optimizerdata/March1SourcesSinksNodes.mat
 
+% vehicledata is the state of the vehicles handed over by MATSim. If it is
+% not given, it is read from vehicledata.mat
+if nargin < 7
+    vehicledata = [];
+end
+% the results are only saved to disk when the state came from disk too;
+% otherwise MATSim reads them out of the workspace
+savefiles = isempty(vehicledata);
+vehicledata = loadVehicleData(vehicledata);
+
+% outputs that are not computed by every branch below
+passpaths = {};
+rebpaths = {};
+numvehicles = 0;
+rebalanceQueue = {};
+
 % boolean flag to enable write to disk of time to solve the optimization
 logSolTimes = 1;
 
@@ -23,6 +39,10 @@ donothingflag = 0;
 
 stationsflag = 1; % if this is on, the simulation runs station-wise
 
+% The .mat files read by MATSim are saved in the current folder, which is
+% the working directory of the MATLAB session (see MatlabSessionPool.java),
+% so that concurrent sessions do not overwrite each other's files.
+
 %Process requests in question:
 MATRIX_DIRECTORY = '/media/Big_Data/yhindy/matrices/';
 
@@ -62,7 +82,7 @@ RoadCap = processCompressedStructure(RoadCap, N);
 
 RoadCap = threshold*RoadCap;
 
-RoadCap = adjustRoadCap(RoadCap, LinkFreeFlow, LinkLength);
+RoadCap = adjustRoadCap(RoadCap, LinkFreeFlow, LinkLength, vehicledata);
 
 TravelTimes = LinkTime;
 
@@ -207,13 +227,14 @@ if ~onlyRebalance & ~donothingflag
 
     numvehicles = numvehicles/timeHorizon/threshold;
 
-    save('~/SVN/code/AMoD_congestion/AMoD_taxi/src/main/resources/optimizerpaths.mat', ...
-     'passpaths', 'rebpaths', 'numvehicles', 'Sources', 'Sinks');
+    if savefiles
+        saveOptimizerPaths(passpaths, rebpaths, numvehicles, Sources, Sinks);
+    end
 elseif ~donothingflag
 
     % TODO: write logic for when only rebalancing
     passpaths = {}; % empty cell will tell route scheduler to use Dijkstra
-    [SourcesReb, SourceFlows, SinksReb, SinkFlows] = calcFlowsFromDistribution(threshold);
+    [SourcesReb, SourceFlows, SinksReb, SinkFlows] = calcFlowsFromDistribution(threshold, vehicledata);
     sourceSize = length(SourcesReb);
 %     for i = 2:length(matrices)
 %         if sourceSize < matrices(i)
@@ -306,8 +327,9 @@ elseif ~donothingflag
         fprintf('Number of rebalancing sources that are active: %d\n',length(rebpaths))
 
         %numvehicles = length(rebpaths);
-        save('~/SVN/code/AMoD_congestion/AMoD_taxi/src/main/resources/optimizerpaths.mat', ...
-     'passpaths', 'rebpaths', 'numvehicles', 'Sources', 'Sinks');
+        if savefiles
+            saveOptimizerPaths(passpaths, rebpaths, numvehicles, Sources, Sinks);
+        end
     else
         disp('Legacy rebalancing')
         rebpaths = {};
@@ -324,7 +346,7 @@ elseif ~donothingflag
             end
         end
 
-        [vexcess, vdesired] = calcLegacyDistribution;
+        [vexcess, vdesired] = calcLegacyDistribution(vehicledata);
 
         %Timing
         timerOpt=tic;
@@ -391,9 +413,9 @@ elseif ~donothingflag
 
         fprintf('Number of trips: %d\n',numtrips)
 
-        % real path: '~/SVN/code/AMoD_congestion/AMoD_taxi/src/main/resources/optimizerpairs.mat'
-        save('~/SVN/code/AMoD_congestion/AMoD_taxi/src/main/resources/optimizerpairs.mat', ...
-            'rebalanceQueue', 'numvehicles');
+        if savefiles
+            save('optimizerpairs.mat', 'rebalanceQueue', 'numvehicles');
+        end
     end
 elseif donothingflag
     disp('Doing nothing')
@@ -410,10 +432,10 @@ elseif donothingflag
     optimizerTimeP=0;
     optimizerCPUTimeP=0;
 
-    save('~/SVN/code/AMoD_congestion/AMoD_taxi/src/main/resources/optimizerpaths.mat', ...
-     'passpaths', 'rebpaths', 'numvehicles', 'Sources', 'Sinks');
-    save('~/SVN/code/AMoD_congestion/AMoD_taxi/src/main/resources/optimizerpairs.mat', ...
-            'rebalanceQueue', 'numvehicles');
+    if savefiles
+        saveOptimizerPaths(passpaths, rebpaths, numvehicles, Sources, Sinks);
+        save('optimizerpairs.mat', 'rebalanceQueue', 'numvehicles');
+    end
 end
 
 optimizerTimeAll=toc(timerAll);
@@ -0,0 +1,16 @@
+function saveOptimizerPaths(passpaths, rebpaths, numvehicles, Sources, Sinks)
+
+% this function saves the paths for AMoDMatFileTransport.java in
+% optimizerpaths.mat, in the current folder. Besides the cells of paths,
+% the paths are saved in compressed sparse row form (see pathsToCSR.m) as
+% doubles, since JMatIO cannot read int32 arrays.
+
+[passnodes, passoffsets, passflows] = pathsToCSR(passpaths);
+[rebnodes, reboffsets, rebflows] = pathsToCSR(rebpaths);
+passnodes = double(passnodes);
+passoffsets = double(passoffsets);
+rebnodes = double(rebnodes);
+reboffsets = double(reboffsets);
+
+save('optimizerpaths.mat', 'passpaths', 'rebpaths', 'numvehicles', 'Sources', 'Sinks', ...
+    'passnodes', 'passoffsets', 'passflows', 'rebnodes', 'reboffsets', 'rebflows');
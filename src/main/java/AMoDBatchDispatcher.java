@@ -0,0 +1,244 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.dvrp.path.VrpPathWithTravelData;
+import org.matsim.contrib.dvrp.path.VrpPaths;
+import org.matsim.contrib.dvrp.util.LinkTimePair;
+import org.matsim.contrib.taxi.data.TaxiRequest;
+import org.matsim.contrib.taxi.optimizer.BestDispatchFinder.Dispatch;
+import org.matsim.contrib.taxi.optimizer.TaxiOptimizerContext;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+
+/**
+ * Class: AMoDBatchDispatcher
+ *
+ * This class matches a batch of requests to vehicles all at once, instead
+ * of giving each request in turn the vehicle that is best for it alone. A
+ * request can only get a vehicle that can be dispatched from the rings of
+ * stations around the request that the AMoDDispatchFinder would search:
+ * dispatchRing rings, widened until they hold a vehicle (up to
+ * dispatchMaxRing rings), so the matrix of pickup times is sparse. The
+ * times are estimated from the beeline distance at dispatchBeelineSpeed,
+ * and the matching that minimizes their sum is found with the auction
+ * algorithm. The pickup path is only routed for the pairs that are matched.
+ *
+ * A request whose best vehicle is more than dispatchUnassignedCost away is
+ * not matched and waits for the next batch.
+ */
+public class AMoDBatchDispatcher {
+
+	/** Beeline distances are this much shorter than the roads */
+	private static final double BEELINE_DISTANCE_FACTOR = 1.3;
+	/** Minimal raise of a bid [s]; the matching is this close to optimal per request */
+	private static final double EPSILON = 1;
+
+	private final TaxiOptimizerContext optimContext;
+	private final NetworkIndex networkIndex;
+	/** Where, when and from which station each vehicle can next be dispatched */
+	private final AMoDVehicleIndex vehicleIndex;
+	private final AMoDRouterFactory routerFactory;
+	/** Average speed on the roads [m/s] */
+	private final double beelineSpeed;
+	/** Pickup time [s] above which a request rather waits */
+	private final double unassignedCost;
+	/** How many rings of stations around a request are looked at first, and at most */
+	private final int dispatchRing;
+	private final int dispatchMaxRing;
+
+	/**
+	 * Constructor: AMoDBatchDispatcher
+	 * --------------------------------
+	 * @param optimContext
+	 * @param networkIndex
+	 * @param vehicleIndex
+	 * @param routerFactory:
+	 *            gives the routers for the pickups of the matched pairs
+	 * @param params
+	 */
+	public AMoDBatchDispatcher(TaxiOptimizerContext optimContext, NetworkIndex networkIndex,
+			AMoDVehicleIndex vehicleIndex, AMoDRouterFactory routerFactory, AMoDTaxiOptimizerParams params) {
+		this.optimContext = optimContext;
+		this.networkIndex = networkIndex;
+		this.vehicleIndex = vehicleIndex;
+		this.routerFactory = routerFactory;
+		this.beelineSpeed = params.dispatchBeelineSpeed / 3.6;
+		this.unassignedCost = params.dispatchUnassignedCost;
+		this.dispatchRing = params.dispatchRing;
+		this.dispatchMaxRing = params.dispatchMaxRing > 0 ? params.dispatchMaxRing : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Function dispatch
+	 * -----------------
+	 * Matches the requests to vehicles.
+	 *
+	 * @param requests
+	 * @return a dispatch for each request that got a vehicle, in the order of
+	 *         the requests. No vehicle is used twice.
+	 */
+	public List<Dispatch<TaxiRequest>> dispatch(List<TaxiRequest> requests) {
+		double currTime = optimContext.timer.getTimeOfDay();
+		int numRequests = requests.size();
+
+		// the candidates of each request, with their estimated pickup times
+		Map<Vehicle, Integer> vehicleIds = new HashMap<Vehicle, Integer>();
+		List<Vehicle> vehicles = new ArrayList<Vehicle>();
+		List<LinkTimePair> departures = new ArrayList<LinkTimePair>();
+		int[][] candidates = new int[numRequests][];
+		double[][] costs = new double[numRequests][];
+		for (int r = 0; r < numRequests; r++) {
+			TaxiRequest req = requests.get(r);
+			List<Vehicle> inRings = candidateVehicles(req);
+
+			int[] cand = new int[inRings.size()];
+			double[] cost = new double[inRings.size()];
+			int numCandidates = 0;
+			for (Vehicle veh : inRings) {
+				Integer v = vehicleIds.get(veh);
+				if (v == null) {
+					v = vehicles.size();
+					vehicleIds.put(veh, v);
+					vehicles.add(veh);
+					departures.add(vehicleIndex.getDeparture(veh));
+				}
+				LinkTimePair departure = departures.get(v);
+				double pickupTime = estimatePickupTime(departure, req.getFromLink(), currTime);
+				if (pickupTime < unassignedCost) {
+					cand[numCandidates] = v;
+					cost[numCandidates] = pickupTime;
+					numCandidates++;
+				}
+			}
+			candidates[r] = Arrays.copyOf(cand, numCandidates);
+			costs[r] = Arrays.copyOf(cost, numCandidates);
+		}
+
+		int[] assigned = auction(candidates, costs, vehicles.size(), unassignedCost);
+
+		LeastCostPathCalculator router = routerFactory.getLegRouter();
+		List<Dispatch<TaxiRequest>> dispatches = new ArrayList<Dispatch<TaxiRequest>>();
+		for (int r = 0; r < numRequests; r++) {
+			if (assigned[r] < 0) {
+				continue;
+			}
+			TaxiRequest req = requests.get(r);
+			Vehicle veh = vehicles.get(assigned[r]);
+			LinkTimePair departure = departures.get(assigned[r]);
+			VrpPathWithTravelData path = VrpPaths.calcAndCreatePath(departure.link, req.getFromLink(),
+					departure.time, router, optimContext.travelTime);
+			dispatches.add(new Dispatch<TaxiRequest>(veh, req, path));
+		}
+		return dispatches;
+	}
+
+	/**
+	 * Function candidateVehicles
+	 * --------------------------
+	 * Widens the rings of stations around the request until they hold a
+	 * vehicle, like the AMoDDispatchFinder does for a single request.
+	 *
+	 * @param req
+	 * @return the vehicles that can be dispatched from the rings.
+	 */
+	private List<Vehicle> candidateVehicles(TaxiRequest req) {
+		StationRings rings = new StationRings(networkIndex, networkIndex.stationOf(req.getFromLink().getFromNode()));
+		while (rings.numRings < Math.min(dispatchRing, dispatchMaxRing)) {
+			if (!rings.widen()) {
+				break;
+			}
+		}
+		List<Vehicle> inRings = rings.getVehicles(vehicleIndex);
+		while (inRings.isEmpty() && rings.numRings < dispatchMaxRing) {
+			if (!rings.widen()) {
+				if (!rings.coversAll()) {
+					rings.allowAll();
+					inRings = rings.getVehicles(vehicleIndex);
+				}
+				break;
+			}
+			inRings = rings.getVehicles(vehicleIndex);
+		}
+		return inRings;
+	}
+
+	/**
+	 * Function auction
+	 * ----------------
+	 * Bertsekas' auction algorithm for the sparse assignment problem. Each
+	 * unmatched request bids for the vehicle that is best for it at the
+	 * current prices, raising its price by how much better it is than the
+	 * second best option (plus EPSILON), and takes it from its previous
+	 * request. Staying unmatched is an option of every request that costs
+	 * unassignedCost, so every request ends up matched or unmatched even
+	 * when there are more requests than vehicles.
+	 *
+	 * @param candidates:
+	 *            the vehicles each request can get
+	 * @param costs:
+	 *            the cost of each candidate
+	 * @param numVehicles
+	 * @param unassignedCost
+	 * @return the vehicle of each request, or -1 for none.
+	 */
+	static int[] auction(int[][] candidates, double[][] costs, int numVehicles, double unassignedCost) {
+		int numRequests = candidates.length;
+		int[] assigned = new int[numRequests];
+		int[] owner = new int[numVehicles];
+		double[] price = new double[numVehicles];
+		Arrays.fill(assigned, -1);
+		Arrays.fill(owner, -1);
+
+		ArrayDeque<Integer> unmatched = new ArrayDeque<Integer>();
+		for (int r = 0; r < numRequests; r++) {
+			unmatched.add(r);
+		}
+		while (!unmatched.isEmpty()) {
+			int r = unmatched.poll();
+			int best = -1;
+			double bestValue = -unassignedCost;
+			double secondValue = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < candidates[r].length; k++) {
+				int v = candidates[r][k];
+				double value = -costs[r][k] - price[v];
+				if (value > bestValue) {
+					secondValue = bestValue;
+					bestValue = value;
+					best = v;
+				} else if (value > secondValue) {
+					secondValue = value;
+				}
+			}
+			if (best == -1) {
+				continue; // stays unmatched
+			}
+			price[best] += bestValue - secondValue + EPSILON;
+			int previous = owner[best];
+			owner[best] = r;
+			assigned[r] = best;
+			if (previous != -1) {
+				assigned[previous] = -1;
+				unmatched.add(previous);
+			}
+		}
+		return assigned;
+	}
+
+	private double estimatePickupTime(LinkTimePair departure, Link toLink, double currTime) {
+		double delay = departure.time - currTime;
+		if (departure.link == toLink) {
+			return delay;
+		}
+		Coord from = departure.link.getToNode().getCoord();
+		Coord to = toLink.getFromNode().getCoord();
+		double dx = from.getX() - to.getX();
+		double dy = from.getY() - to.getY();
+		return delay + Math.sqrt(dx * dx + dy * dy) * BEELINE_DISTANCE_FACTOR / beelineSpeed;
+	}
+}
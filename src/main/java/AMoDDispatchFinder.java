@@ -1,82 +1,142 @@
 import java.util.HashMap;
 import java.util.Map;
 
-import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
 import org.matsim.contrib.dvrp.data.Vehicle;
 import org.matsim.contrib.dvrp.path.VrpPathWithTravelData;
 import org.matsim.contrib.dvrp.path.VrpPaths;
 import org.matsim.contrib.dvrp.util.LinkTimePair;
-import org.matsim.api.core.v01.network.Node;
 import org.matsim.contrib.taxi.data.TaxiRequest;
-import org.matsim.contrib.taxi.optimizer.BestDispatchFinder;
-import org.matsim.contrib.taxi.optimizer.LinkProvider;
-import org.matsim.contrib.taxi.optimizer.LinkProviders;
-import org.matsim.contrib.taxi.optimizer.TaxiOptimizerContext;
 import org.matsim.contrib.taxi.optimizer.BestDispatchFinder.Dispatch;
+import org.matsim.contrib.taxi.optimizer.TaxiOptimizerContext;
 import org.matsim.contrib.taxi.scheduler.TaxiScheduleInquiry;
-import org.matsim.core.router.ArrayFastRouterDelegateFactory;
-import org.matsim.core.router.FastMultiNodeDijkstra;
-import org.matsim.core.router.FastRouterDelegateFactory;
-import org.matsim.core.router.ImaginaryNode;
-import org.matsim.core.router.InitialNode;
-import org.matsim.core.router.MultiNodeDijkstra;
-import org.matsim.core.router.util.ArrayRoutingNetworkFactory;
-import org.matsim.core.router.util.PreProcessDijkstra;
-import org.matsim.core.router.util.RoutingNetwork;
 import org.matsim.core.router.util.LeastCostPathCalculator.Path;
 
-public class AMoDDispatchFinder extends BestDispatchFinder {
+/**
+ * Class: AMoDDispatchFinder
+ *
+ * This class finds the vehicle that gets to a request the fastest among
+ * the vehicles of the station of the request. The search for it only goes
+ * through the station of the request and the dispatchRing rings of
+ * stations around it, up to a cost of dispatchCostCutoff. If no vehicle is
+ * found, the search is widened ring by ring, up to dispatchMaxRing rings,
+ * before the request is given up for this time step. Without a maximum, the
+ * last search goes through the whole network, unless the rings already
+ * cover it.
+ */
+public class AMoDDispatchFinder implements AMoDVehicleFinder {
 	
-	double[][] stations_to_nodes;
-	double[][] nodes_to_stations;
+	private final NetworkIndex networkIndex;
 	private final TaxiOptimizerContext optimContext;
 	private int expectedNeighbourhoodSize;
 	private final TaxiScheduleInquiry scheduleInquiry;
-	private final MultiNodeDijkstra router;
+	/** The state of the vehicles by station, or null to search the whole fleet */
+	private final AMoDVehicleIndex vehicleIndex;
+	/** How many rings of neighbouring stations the first search goes through */
+	private final int dispatchRing;
+	/** The highest cost a search goes to */
+	private final double dispatchCostCutoff;
+	/** The most rings a search is widened to */
+	private final int dispatchMaxRing;
+
+	/** The search of each thread */
+	private final ThreadLocal<AMoDDispatchSearch> searches = new ThreadLocal<AMoDDispatchSearch>() {
+		@Override
+		protected AMoDDispatchSearch initialValue() {
+			return new AMoDDispatchSearch(networkIndex, optimContext.travelDisutility, optimContext.travelTime);
+		}
+	};
+
+	public AMoDDispatchFinder(TaxiOptimizerContext optimContext, AMoDTaxiOptimizerParams params,
+								NetworkIndex networkIndex) {
+		this(optimContext, params, networkIndex, null);
+	}
 
-	public AMoDDispatchFinder(TaxiOptimizerContext optimContext, int expectedNeighbourhoodSize, double[][] stations_to_nodes,
-								double[][] nodes_to_stations) {
-		super(optimContext, expectedNeighbourhoodSize);
-		this.stations_to_nodes = stations_to_nodes;
-		this.nodes_to_stations = nodes_to_stations;
+	public AMoDDispatchFinder(TaxiOptimizerContext optimContext, AMoDTaxiOptimizerParams params,
+								NetworkIndex networkIndex, AMoDVehicleIndex vehicleIndex) {
+		this.networkIndex = networkIndex;
+		this.vehicleIndex = vehicleIndex;
 		this.optimContext = optimContext;
 		this.scheduleInquiry = optimContext.scheduler;
-		this.expectedNeighbourhoodSize = expectedNeighbourhoodSize;
-		
-		PreProcessDijkstra preProcessDijkstra = null;
-		FastRouterDelegateFactory fastRouterFactory = new ArrayFastRouterDelegateFactory();
-
-		RoutingNetwork routingNetwork = new ArrayRoutingNetworkFactory(preProcessDijkstra)
-				.createRoutingNetwork(optimContext.network);
-		router = new FastMultiNodeDijkstra(routingNetwork, optimContext.travelDisutility, optimContext.travelTime,
-				preProcessDijkstra, fastRouterFactory, false);
+		this.expectedNeighbourhoodSize = params.neighbourhoodSize;
+		this.dispatchRing = params.dispatchRing;
+		this.dispatchCostCutoff = params.dispatchCostCutoff > 0 ? params.dispatchCostCutoff
+				: Double.POSITIVE_INFINITY;
+		this.dispatchMaxRing = params.dispatchMaxRing > 0 ? params.dispatchMaxRing : Integer.MAX_VALUE;
 	}
 	
+	/**
+	 * Function findBestVehicleForRequest
+	 * ----------------------------------
+	 * Finds the vehicle that can get to the request first, searching wider
+	 * and wider rings of stations around the request until one is found, or
+	 * dispatchMaxRing rings have been searched.
+	 * With a vehicle index, only the vehicles indexed at the stations of the
+	 * rings are looked at, and vehicles is not used.
+	 *
+	 * @param req
+	 * @param vehicles: the fleet
+	 * @return the dispatch, or null if no vehicle can get to the request.
+	 */
+	@Override
 	public Dispatch<TaxiRequest> findBestVehicleForRequest(TaxiRequest req,
 			Iterable<? extends Vehicle> vehicles) {
-		return findBestVehicle(req, vehicles, req.getFromLink());
+		Link toLink = req.getFromLink();
+		StationRings rings = new StationRings(networkIndex, networkIndex.stationOf(toLink.getFromNode()));
+		while (rings.numRings < Math.min(dispatchRing, dispatchMaxRing)) {
+			if (!rings.widen()) {
+				break;
+			}
+		}
+		while (true) {
+			Dispatch<TaxiRequest> best = findBestVehicle(req, candidates(rings, vehicles), toLink, rings.allowed);
+			if (best != null) {
+				return best;
+			}
+			if (rings.numRings >= dispatchMaxRing) {
+				return null;
+			}
+			if (!rings.widen()) {
+				break;
+			}
+		}
+		if (rings.coversAll()) {
+			return null;
+		}
+		rings.allowAll();
+		return findBestVehicle(req, candidates(rings, vehicles), toLink, rings.allowed);
 	}
 	
+	/**
+	 * Function findBestVehicle
+	 * ------------------------
+	 * Finds the vehicle of the station of toLink that can get to it first.
+	 *
+	 * @param destination
+	 * @param vehicles
+	 * @param toLink
+	 * @return the dispatch, or null if no vehicle of the station can get there.
+	 */
 	public <D> Dispatch<D> findBestVehicle(D destination, Iterable<? extends Vehicle> vehicles,
 			Link toLink) {
-		if (vehicles == null) {
-			System.out.println("Problem");
-		}
+		StationRings rings = new StationRings(networkIndex, networkIndex.stationOf(toLink.getFromNode()));
+		return findBestVehicle(destination, vehicles, toLink, rings.allowed);
+	}
+
+	private <D> Dispatch<D> findBestVehicle(D destination, Iterable<? extends Vehicle> vehicles,
+			Link toLink, boolean[] allowedStations) {
 		double currTime = optimContext.timer.getTimeOfDay();
 		Node toNode = toLink.getFromNode();
 		
-		int station = (int) nodes_to_stations[Integer.parseInt(toNode.getId().toString())-1][0];
-		
-		Map<Id<Node>, Vehicle> nodeToVehicle = new HashMap<>(expectedNeighbourhoodSize);
-		Map<Id<Node>, InitialNode> initialNodes = new HashMap<>(expectedNeighbourhoodSize);
+		AMoDDispatchSearch search = searches.get();
+		search.start();
+		Map<Node, Vehicle> nodeToVehicle = new HashMap<>(expectedNeighbourhoodSize);
+		Map<Node, Double> nodeDelay = new HashMap<>(expectedNeighbourhoodSize);
 		
 		for (Vehicle veh : vehicles) {
-			LinkTimePair departure = scheduleInquiry.getImmediateDiversionOrEarliestIdleness(veh);
-			Link vehlink = departure.link;
-			Id<Node> vehNodeId = vehlink.getToNode().getId();
-			int vehStation = (int) nodes_to_stations[Integer.parseInt(vehNodeId.toString())-1][0];
-			if (departure != null && station == vehStation) {
+			LinkTimePair departure = departure(veh);
+			if (departure != null && allowedStations[networkIndex.stationOf(departure.link.getToNode())]) {
 				Node vehNode;
                 double delay = departure.time - currTime;
                 if (departure.link == toLink) {
@@ -90,36 +150,47 @@ public class AMoDDispatchFinder extends BestDispatchFinder {
                     delay += 1 + toLink.getFreespeed(departure.time);
                 }
 
-                InitialNode existingInitialNode = initialNodes.get(vehNode.getId());
-                if (existingInitialNode == null || existingInitialNode.initialCost > delay) {
-                    InitialNode newInitialNode = new InitialNode(vehNode, delay, delay);
-                    initialNodes.put(vehNode.getId(), newInitialNode);
-                    nodeToVehicle.put(vehNode.getId(), veh);
+                Double existingDelay = nodeDelay.get(vehNode);
+                if (existingDelay == null || existingDelay > delay) {
+                    nodeDelay.put(vehNode, delay);
+                    nodeToVehicle.put(vehNode, veh);
+                    search.addSource(networkIndex.nodeIndex(vehNode), delay, currTime + delay);
                 }
 			}
 		}
 		
-		if (initialNodes.isEmpty()) {
+		if (nodeToVehicle.isEmpty()) {
 			return null;
 		}
 		
-		ImaginaryNode fromNodes = router.createImaginaryNode(initialNodes.values());
-
-        Path path = router.calcLeastCostPath(fromNodes, toNode, currTime, null, null);
-        //the calculated path contains real nodes (no imaginary/initial nodes),
-        //the time and cost are of real travel (between the first and last real node)
-        //(no initial times/costs for imaginary<->initial are included)
+        Path path = search.search(networkIndex.nodeIndex(toNode), allowedStations, dispatchCostCutoff);
+        if (path == null) {
+            return null;
+        }
+        //the path starts at the node of the best vehicle, and its time and
+        //cost are of real travel (without the delay of the vehicle)
         Node fromNode = path.nodes.get(0);
-        Vehicle bestVehicle = nodeToVehicle.get(fromNode.getId());
-        LinkTimePair bestDeparture = scheduleInquiry
-                .getImmediateDiversionOrEarliestIdleness(bestVehicle);
+        Vehicle bestVehicle = nodeToVehicle.get(fromNode);
+        LinkTimePair bestDeparture = departure(bestVehicle);
 
         VrpPathWithTravelData vrpPath = VrpPaths.createPath(bestDeparture.link, toLink,
                 bestDeparture.time, path, optimContext.travelTime);
         return new Dispatch<>(bestVehicle, destination, vrpPath);
-		
-		
-		
 	}
 
+	/** Where and when the vehicle can next be dispatched, from the index if there is one */
+	private LinkTimePair departure(Vehicle veh) {
+		if (vehicleIndex != null) {
+			return vehicleIndex.getDeparture(veh);
+		}
+		return scheduleInquiry.getImmediateDiversionOrEarliestIdleness(veh);
+	}
+
+	/** The vehicles that may be in the stations of the rings */
+	private Iterable<? extends Vehicle> candidates(StationRings rings, Iterable<? extends Vehicle> vehicles) {
+		if (vehicleIndex == null) {
+			return vehicles;
+		}
+		return rings.getVehicles(vehicleIndex);
+	}
 }
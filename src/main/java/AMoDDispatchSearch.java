@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.LeastCostPathCalculator.Path;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * Class: AMoDDispatchSearch
+ *
+ * This class finds the vehicle that gets to a node the fastest, like a
+ * Dijkstra search from an imaginary node linked to the nodes of all the
+ * vehicles, but it only goes through the nodes of a given set of stations
+ * (and the target), and stops once the cost goes over a cutoff. The search
+ * of a dispatch thus stays around the station of the request, instead of
+ * spreading over the whole network when no vehicle is near.
+ *
+ * An instance does one search at a time and belongs to one thread.
+ */
+public class AMoDDispatchSearch {
+
+	private final NetworkIndex networkIndex;
+	private final TravelDisutility travelDisutility;
+	private final TravelTime travelTime;
+
+	/** The state of the search, valid for the nodes reached in this search */
+	private final double[] cost;
+	private final double[] time;
+	private final int[] previousLink;
+	private final int[] reached;
+	private final int[] settled;
+	private final NodeHeap heap = new NodeHeap();
+	private int search = 0;
+
+	/**
+	 * Constructor: AMoDDispatchSearch
+	 * -------------------------------
+	 * @param networkIndex
+	 * @param travelDisutility
+	 * @param travelTime
+	 */
+	public AMoDDispatchSearch(NetworkIndex networkIndex, TravelDisutility travelDisutility, TravelTime travelTime) {
+		this.networkIndex = networkIndex;
+		this.travelDisutility = travelDisutility;
+		this.travelTime = travelTime;
+		int numNodes = networkIndex.numNodes();
+		this.cost = new double[numNodes];
+		this.time = new double[numNodes];
+		this.previousLink = new int[numNodes];
+		this.reached = new int[numNodes];
+		this.settled = new int[numNodes];
+	}
+
+	/**
+	 * Function addSource
+	 * ------------------
+	 * Adds a node the search starts from. Must be called after start and
+	 * before search.
+	 *
+	 * @param node:
+	 *            node index
+	 * @param initialCost
+	 * @param initialTime:
+	 *            the time the search leaves the node
+	 */
+	public void addSource(int node, double initialCost, double initialTime) {
+		if (reached[node] == search && cost[node] <= initialCost) {
+			return;
+		}
+		reached[node] = search;
+		cost[node] = initialCost;
+		time[node] = initialTime;
+		previousLink[node] = -1;
+		heap.push(initialCost, node);
+	}
+
+	/**
+	 * Function start
+	 * --------------
+	 * Starts a new search, without sources.
+	 */
+	public void start() {
+		search++;
+		heap.clear();
+	}
+
+	/**
+	 * Function search
+	 * ---------------
+	 * @param target:
+	 *            node index
+	 * @param allowedStations:
+	 *            the stations (by number, 0 for nodes without station) whose
+	 *            nodes the search may go through
+	 * @param cutoff:
+	 *            the highest cost the search goes to
+	 * @return the path from the best source to the target, with the travel
+	 *         time and cost from the source (without the initial ones), or
+	 *         null if no source reaches the target.
+	 */
+	public Path search(int target, boolean[] allowedStations, double cutoff) {
+		while (!heap.isEmpty()) {
+			int u = heap.pop();
+			if (settled[u] == search) {
+				continue;
+			}
+			if (cost[u] > cutoff) {
+				return null;
+			}
+			settled[u] = search;
+			if (u == target) {
+				return pathTo(target);
+			}
+			for (int l = networkIndex.firstOutLink(u); l < networkIndex.endOutLink(u); l++) {
+				int v = networkIndex.getLinkTo(l);
+				if (settled[v] == search || (v != target && !allowedStations[networkIndex.nodeToStation[v]])) {
+					continue;
+				}
+				Link link = networkIndex.getLink(l);
+				double newCost = cost[u] + travelDisutility.getLinkTravelDisutility(link, time[u], null, null);
+				if (reached[v] != search || newCost < cost[v]) {
+					reached[v] = search;
+					cost[v] = newCost;
+					time[v] = time[u] + travelTime.getLinkTravelTime(link, time[u], null, null);
+					previousLink[v] = l;
+					heap.push(newCost, v);
+				}
+			}
+		}
+		return null;
+	}
+
+	private Path pathTo(int target) {
+		List<Node> nodes = new ArrayList<Node>();
+		List<Link> links = new ArrayList<Link>();
+		int v = target;
+		while (previousLink[v] != -1) {
+			links.add(networkIndex.getLink(previousLink[v]));
+			nodes.add(networkIndex.getNode(v));
+			v = networkIndex.getLinkFrom(previousLink[v]);
+		}
+		nodes.add(networkIndex.getNode(v));
+		Collections.reverse(nodes);
+		Collections.reverse(links);
+		return new Path(nodes, links, time[target] - time[v], cost[target] - cost[v]);
+	}
+}
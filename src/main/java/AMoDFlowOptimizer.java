@@ -0,0 +1,31 @@
+import java.io.IOException;
+
+import matlabcontrol.MatlabConnectionException;
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * Interface: AMoDFlowOptimizer
+ *
+ * This interface is implemented by the backends that compute the routes for
+ * one decision epoch. The AMoDTaxiOptimizer hands a backend the
+ * station-level state of the simulation and gets back the passenger and
+ * rebalancing paths (or the station pairs to rebalance between, for legacy
+ * rebalancing).
+ */
+public interface AMoDFlowOptimizer {
+
+	/**
+	 * Function optimize
+	 * -----------------
+	 * Computes the routes for the given state of the simulation. This can
+	 * be called off the simulation thread.
+	 *
+	 * @param input
+	 * @return the raw result of the optimizer
+	 * @throws IOException
+	 * @throws MatlabConnectionException
+	 * @throws MatlabInvocationException
+	 */
+	AMoDOptimizerPaths optimize(AMoDOptimizerInput input)
+			throws IOException, MatlabConnectionException, MatlabInvocationException;
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import matlabcontrol.MatlabInvocationException;
+import matlabcontrol.MatlabProxy;
+
+/**
+ * Class: AMoDInMemoryTransport
+ *
+ * This transport exchanges data with MATLAB directly through the
+ * MatlabProxy session: the vehicle state is set as variables in the MATLAB
+ * workspace and handed to runOptimization.m, and the returned paths are read
+ * back as variables. Nothing is serialized to disk on the way.
+ *
+ * runOptimization.m does not save its .mat files when it gets the state
+ * this way. If the paths cannot be read from the session, the session is
+ * asked to save them, and they are read from disk instead.
+ */
+public class AMoDInMemoryTransport extends AMoDMatlabTransport {
+
+	/** Used to read the result if it can't be read from the session */
+	private final AMoDMatFileTransport fileTransport = new AMoDMatFileTransport();
+
+	@Override
+	protected void sendState(MatlabSession session, AMoDOptimizerInput input) throws MatlabInvocationException {
+		MatlabProxy proxy = session.getProxy();
+		proxy.setVariable("vehdistribution", input.vehdistribution);
+		proxy.setVariable("totalvehicles", input.totalvehicles);
+		proxy.setVariable("totalpassengers", input.totalpassengers);
+		proxy.setVariable("vehlocations", input.vehlocations);
+		proxy.setVariable("waitingpassengers", input.waitingpassengers);
+		proxy.eval("vehicledata = struct('vehdistribution', vehdistribution(:), 'totalvehicles', totalvehicles, "
+				+ "'totalpassengers', totalpassengers, 'vehlocations', vehlocations(:), "
+				+ "'waitingpassengers', waitingpassengers(:));");
+	}
+
+	@Override
+	protected void runOptimization(MatlabSession session, String optimizationArgs) throws MatlabInvocationException {
+		session.getProxy().eval("[passpaths, rebpaths, numvehicles, rebalanceQueue] = runOptimization(" + optimizationArgs
+				+ ", vehicledata);");
+	}
+
+	@Override
+	protected AMoDOptimizerPaths receivePaths(MatlabSession session, boolean legacyRebalance) throws IOException {
+		MatlabProxy proxy = session.getProxy();
+		try {
+			AMoDOptimizerPaths result = new AMoDOptimizerPaths();
+			result.numvehicles = ((double[]) proxy.getVariable("numvehicles"))[0];
+			if (!legacyRebalance) {
+				result.passpaths = readPaths(proxy, "passpaths");
+				result.rebpaths = readPaths(proxy, "rebpaths");
+			} else {
+				result.rebalanceQueue = makeRebQueue(proxy.getVariable("rebalanceQueue"));
+			}
+			return result;
+		} catch (MatlabInvocationException | ClassCastException | IllegalArgumentException e) {
+			System.out.println("Could not read the optimizer output from MATLAB, reading it from disk instead");
+			e.printStackTrace();
+			saveResults(proxy, legacyRebalance);
+			return fileTransport.receivePaths(session, legacyRebalance);
+		}
+	}
+
+	/**
+	 * Function saveResults
+	 * --------------------
+	 * Saves the output of runOptimization.m from the workspace to the files
+	 * that AMoDMatFileTransport reads.
+	 *
+	 * @param proxy
+	 * @param legacyRebalance
+	 * @throws IOException
+	 */
+	private static void saveResults(MatlabProxy proxy, boolean legacyRebalance) throws IOException {
+		try {
+			if (!legacyRebalance) {
+				proxy.eval("saveOptimizerPaths(passpaths, rebpaths, numvehicles, [], []);");
+			} else {
+				proxy.eval("save('" + AMoDMatFileTransport.PAIRS_FILE + "', 'rebalanceQueue', 'numvehicles');");
+			}
+		} catch (MatlabInvocationException e) {
+			throw new IOException("Could not save the optimizer output in MATLAB", e);
+		}
+	}
+
+	/**
+	 * Function readPaths
+	 * ------------------
+	 * Reads a cell of paths out of the session in compressed sparse row form
+	 * (see pathsToCSR.m), so that only three arrays cross over from MATLAB.
+	 *
+	 * @param proxy
+	 * @param variable:
+	 *            the name of the cell of paths in the MATLAB workspace
+	 * @return the paths
+	 * @throws MatlabInvocationException
+	 */
+	private static AMoDPathBuffer readPaths(MatlabProxy proxy, String variable) throws MatlabInvocationException {
+		Object[] csr = proxy.returningEval("pathsToCSR(" + variable + ")", 3);
+		int[] offsets = toIntArray(csr[1]);
+		return new AMoDPathBuffer(toIntArray(csr[0]), offsets, (double[]) csr[2]);
+	}
+
+	/** MATLAB int32 arrays come back as int[], but an empty one may not */
+	private static int[] toIntArray(Object array) {
+		if (array instanceof int[]) {
+			return (int[]) array;
+		}
+		double[] values = (double[]) array;
+		int[] result = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = (int) values[i];
+		}
+		return result;
+	}
+
+	private static List<List<Integer>> makeRebQueue(Object cell) {
+		List<List<Integer>> result = new ArrayList<List<Integer>>();
+		for (Object stations : (Object[]) cell) {
+			List<Integer> destinations = new ArrayList<Integer>();
+			if (stations != null) {
+				for (double station : (double[]) stations) {
+					destinations.add((int) station);
+				}
+			}
+			result.add(destinations);
+		}
+		return result;
+	}
+}
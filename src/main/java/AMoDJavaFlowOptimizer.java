@@ -0,0 +1,331 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+
+/**
+ * Class: AMoDJavaFlowOptimizer
+ *
+ * This optimizer backend computes the rebalancing routes inside the JVM, so
+ * it does not need MATLAB or CPLEX. It follows the rebalancing-only branch
+ * of runOptimization.m:
+ *
+ * 1. the excess and desired number of vehicles per station are computed as
+ * in calcLegacyDistribution.m, and the differences become rebalancing
+ * sources and sinks on random nodes of each station
+ * (calcFlowsFromDistribution.m)
+ *
+ * 2. the time-invariant rebalancing flow (TIMulticommodityFlow_f_R.m) is
+ * solved as a minimum cost flow on the road network, with link travel times
+ * as costs and the road capacities left over by the vehicles already on the
+ * road (adjustRoadCap.m) as capacities
+ *
+ * 3. the flow is decomposed into one path per rebalancing vehicle
+ * (TIRebPathDecomposition_f.m).
+ *
+ * For legacy rebalancing, the station-to-station transportation problem is
+ * solved the same way, with the L1 distance between stations as cost.
+ *
+ * Passenger paths are not computed, so passengers are routed with Dijkstra
+ * (as with onlyRebalance in runOptimization.m).
+ */
+public class AMoDJavaFlowOptimizer implements AMoDFlowOptimizer {
+
+	/** Station-Node data */
+	private final NetworkIndex networkIndex;
+	/** The MATLAB node numbers that belong to each station */
+	private final List<List<Integer>> station_nodes;
+
+	/** The road graph, by MATLAB node number (1..numNodes) */
+	private final int numNodes;
+	private final int[] linkFrom;
+	private final int[] linkTo;
+	private final int[] linkNumber;
+	private final double[] linkTime;
+	private final double[] linkCapacity;
+	private final double[] linkFlowPerVehicle;
+
+	private final double tripThreshold;
+	private final boolean legacyRebalance;
+	private final SplittableRandom random;
+
+	/**
+	 * Constructor: AMoDJavaFlowOptimizer
+	 * ----------------------------------
+	 * Builds the road graph used by the flow problems.
+	 *
+	 * @param networkIndex
+	 * @param tripThreshold
+	 * @param legacyRebalance:
+	 *            if true, only the station pairs to rebalance between are
+	 *            computed
+	 * @param random:
+	 *            places the sources and sinks, for the use of this optimizer
+	 *            only (it may solve on another thread)
+	 */
+	public AMoDJavaFlowOptimizer(NetworkIndex networkIndex, double tripThreshold, boolean legacyRebalance,
+			SplittableRandom random) {
+		this.networkIndex = networkIndex;
+		this.random = random;
+		this.tripThreshold = tripThreshold;
+		this.legacyRebalance = legacyRebalance;
+
+		station_nodes = new ArrayList<List<Integer>>();
+		for (int s = 0; s < networkIndex.numStations(); s++) {
+			List<Integer> numbers = new ArrayList<Integer>();
+			for (int node : networkIndex.stationToNodes[s]) {
+				// the representative node may belong to another station
+				if (networkIndex.nodeToStation[node] == s + 1) {
+					numbers.add(networkIndex.getNodeNumber(node));
+				}
+			}
+			station_nodes.add(numbers);
+		}
+
+		int numLinks = networkIndex.numLinks();
+		int maxNode = 0;
+		linkFrom = new int[numLinks];
+		linkTo = new int[numLinks];
+		linkNumber = new int[numLinks];
+		linkTime = new double[numLinks];
+		linkCapacity = new double[numLinks];
+		linkFlowPerVehicle = new double[numLinks];
+		for (int i = 0; i < numLinks; i++) {
+			Link l = networkIndex.getLink(i);
+			linkFrom[i] = networkIndex.getNodeNumber(networkIndex.getLinkFrom(i));
+			linkTo[i] = networkIndex.getNodeNumber(networkIndex.getLinkTo(i));
+			linkNumber[i] = networkIndex.getLinkNumber(i);
+			linkTime[i] = l.getLength() / l.getFreespeed();
+			linkCapacity[i] = l.getCapacity();
+			// a vehicle on the link uses up this much of its hourly capacity
+			linkFlowPerVehicle[i] = l.getFreespeed() * 3600 / l.getLength();
+			maxNode = Math.max(maxNode, Math.max(linkFrom[i], linkTo[i]));
+		}
+		numNodes = maxNode;
+	}
+
+	@Override
+	public AMoDOptimizerPaths optimize(AMoDOptimizerInput input) {
+		System.out.println("Starting Java optimizer at time " + input.startTime);
+		long start = System.currentTimeMillis();
+		AMoDOptimizerPaths result;
+		if (legacyRebalance) {
+			result = solveLegacyRebalancing(input);
+		} else {
+			result = solveRebalancingFlow(input);
+		}
+		System.out.println("Java optimizer done in " + (System.currentTimeMillis() - start) + " ms, "
+				+ result.numvehicles + " vehicles required");
+		return result;
+	}
+
+	/**
+	 * Function calcStationImbalance
+	 * -----------------------------
+	 * Computes how many vehicles each station has too many (positive) or
+	 * too few (negative), as in calcLegacyDistribution.m. Stations that have
+	 * no nodes are left at 0.
+	 *
+	 * @param input
+	 * @return the excess of each station, indexed by station - 1
+	 */
+	private int[] calcStationImbalance(AMoDOptimizerInput input) {
+		int numStations = networkIndex.numStations();
+		int availableStations = 0;
+		double totalWaiting = 0;
+		for (int i = 0; i < numStations; i++) {
+			if (!station_nodes.get(i).isEmpty()) {
+				availableStations++;
+			}
+			totalWaiting += input.waitingpassengers[i];
+		}
+		int[] result = new int[numStations];
+		if (availableStations == 0) {
+			return result;
+		}
+		double vdesired = Math.floor((input.totalvehicles - totalWaiting) / availableStations);
+		for (int i = 0; i < numStations; i++) {
+			if (!station_nodes.get(i).isEmpty()) {
+				double vexcess = input.vehdistribution[i] - input.waitingpassengers[i];
+				result[i] = (int) Math.round(vexcess - vdesired);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Function solveRebalancingFlow
+	 * -----------------------------
+	 * Solves the rebalancing flow on the road network and decomposes it
+	 * into one path per rebalancing vehicle.
+	 *
+	 * @param input
+	 * @return the rebalancing paths
+	 */
+	private AMoDOptimizerPaths solveRebalancingFlow(AMoDOptimizerInput input) {
+		int[] imbalance = calcStationImbalance(input);
+
+		// sources and sinks go on random nodes of their station
+		int[] supply = new int[numNodes + 1];
+		int[] demand = new int[numNodes + 1];
+		for (int i = 0; i < imbalance.length; i++) {
+			List<Integer> nodes = station_nodes.get(i);
+			for (int j = 0; j < Math.abs(imbalance[i]); j++) {
+				int node = nodes.get(random.nextInt(nodes.size()));
+				if (imbalance[i] > 0) {
+					supply[node]++;
+				} else {
+					demand[node]++;
+				}
+			}
+		}
+
+		// node k of the road network is node k - 1 of the flow problem
+		int source = numNodes;
+		int sink = numNodes + 1;
+		AMoDMinCostFlow flow = new AMoDMinCostFlow(numNodes + 2, linkFrom.length + 2 * numNodes);
+		int[] linkEdge = new int[linkFrom.length];
+		for (int i = 0; i < linkFrom.length; i++) {
+			double used = linkNumber[i] - 1 < input.vehlocations.length
+					? input.vehlocations[linkNumber[i] - 1] * linkFlowPerVehicle[i] : 0;
+			int capacity = (int) Math.max(Math.round(tripThreshold * linkCapacity[i] - used), 0);
+			linkEdge[i] = flow.addEdge(linkFrom[i] - 1, linkTo[i] - 1, capacity, linkTime[i]);
+		}
+		int[] supplyEdge = new int[numNodes + 1];
+		int[] demandEdge = new int[numNodes + 1];
+		for (int node = 1; node <= numNodes; node++) {
+			supplyEdge[node] = supply[node] > 0 ? flow.addEdge(source, node - 1, supply[node], 0) : -1;
+			demandEdge[node] = demand[node] > 0 ? flow.addEdge(node - 1, sink, demand[node], 0) : -1;
+		}
+		flow.solve(source, sink);
+
+		AMoDOptimizerPaths result = new AMoDOptimizerPaths();
+		int[] linkFlow = new int[linkFrom.length];
+		List<List<Integer>> outLinks = new ArrayList<List<Integer>>();
+		for (int node = 0; node <= numNodes; node++) {
+			outLinks.add(new ArrayList<Integer>());
+		}
+		double numvehicles = 0;
+		for (int i = 0; i < linkFrom.length; i++) {
+			linkFlow[i] = flow.getFlow(linkEdge[i]);
+			numvehicles += linkFlow[i] * linkTime[i];
+			if (linkFlow[i] > 0) {
+				outLinks.get(linkFrom[i]).add(i);
+			}
+		}
+		result.numvehicles = numvehicles;
+
+		// decompose the flow into unit paths, one per rebalancing vehicle
+		int[] arriving = new int[numNodes + 1];
+		for (int node = 1; node <= numNodes; node++) {
+			arriving[node] = demandEdge[node] == -1 ? 0 : flow.getFlow(demandEdge[node]);
+		}
+		int[] path = new int[16];
+		for (int node = 1; node <= numNodes; node++) {
+			int leaving = supplyEdge[node] == -1 ? 0 : flow.getFlow(supplyEdge[node]);
+			for (int k = 0; k < leaving; k++) {
+				int length = 0;
+				int curr = node;
+				path[length++] = curr;
+				while (arriving[curr] == 0) {
+					int next = -1;
+					for (int l : outLinks.get(curr)) {
+						if (linkFlow[l] > 0) {
+							linkFlow[l]--;
+							next = linkTo[l];
+							break;
+						}
+					}
+					if (next == -1) {
+						break;
+					}
+					curr = next;
+					if (length == path.length) {
+						path = Arrays.copyOf(path, 2 * length);
+					}
+					path[length++] = curr;
+				}
+				if (arriving[curr] == 0) {
+					// cannot happen when the flow is conserved
+					System.out.println("Rebalancing flow from node " + node + " does not reach a sink");
+					break;
+				}
+				arriving[curr]--;
+				if (length > 1) {
+					result.rebpaths.add(path, length, 1);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Function solveLegacyRebalancing
+	 * -------------------------------
+	 * Solves the station-to-station transportation problem of legacy
+	 * rebalancing: move the excess vehicles to the stations that need them
+	 * while minimizing the total L1 distance between stations.
+	 *
+	 * @param input
+	 * @return the rebalancing queue of each station
+	 */
+	private AMoDOptimizerPaths solveLegacyRebalancing(AMoDOptimizerInput input) {
+		int[] imbalance = calcStationImbalance(input);
+		int numStations = imbalance.length;
+		int source = numStations;
+		int sink = numStations + 1;
+
+		List<Integer> excess = new ArrayList<Integer>();
+		List<Integer> deficit = new ArrayList<Integer>();
+		int totalExcess = 0;
+		for (int i = 0; i < numStations; i++) {
+			if (imbalance[i] > 0) {
+				excess.add(i);
+				totalExcess += imbalance[i];
+			} else if (imbalance[i] < 0) {
+				deficit.add(i);
+			}
+		}
+
+		AMoDMinCostFlow flow = new AMoDMinCostFlow(numStations + 2,
+				excess.size() * deficit.size() + excess.size() + deficit.size());
+		int[][] pairEdge = new int[excess.size()][deficit.size()];
+		for (int a = 0; a < excess.size(); a++) {
+			int i = excess.get(a);
+			flow.addEdge(source, i, imbalance[i], 0);
+			Coord from = stationCoord(i);
+			for (int b = 0; b < deficit.size(); b++) {
+				Coord to = stationCoord(deficit.get(b));
+				double distance = Math.abs(from.getX() - to.getX()) + Math.abs(from.getY() - to.getY());
+				pairEdge[a][b] = flow.addEdge(i, deficit.get(b), totalExcess, distance);
+			}
+		}
+		for (int j : deficit) {
+			flow.addEdge(j, sink, -imbalance[j], 0);
+		}
+		int numtrips = flow.solve(source, sink);
+
+		AMoDOptimizerPaths result = new AMoDOptimizerPaths();
+		result.rebalanceQueue = new ArrayList<List<Integer>>();
+		for (int i = 0; i < numStations; i++) {
+			result.rebalanceQueue.add(new ArrayList<Integer>());
+		}
+		for (int a = 0; a < excess.size(); a++) {
+			for (int b = 0; b < deficit.size(); b++) {
+				int trips = flow.getFlow(pairEdge[a][b]);
+				for (int k = 0; k < trips; k++) {
+					result.rebalanceQueue.get(excess.get(a)).add(deficit.get(b) + 1);
+				}
+			}
+		}
+		result.numvehicles = numtrips;
+		return result;
+	}
+
+	private Coord stationCoord(int station) {
+		return networkIndex.stationNode(station + 1).getCoord();
+	}
+}
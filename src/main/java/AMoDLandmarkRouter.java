@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Class: AMoDLandmarkRouter
+ *
+ * This class finds least-cost paths with A* search, using the landmarks of
+ * AMoDLandmarks as the lower bound of the cost that is left. The bounds are
+ * free-speed travel times, so they hold as long as no link costs less than
+ * its free-speed travel time, which congestion does not change. When a link
+ * does cost less (the travel disutility is not the travel time), the search
+ * is given to the fallback router instead.
+ *
+ * Like the MATSim routers, a router does one search at a time and belongs
+ * to one thread.
+ */
+public class AMoDLandmarkRouter implements LeastCostPathCalculator {
+
+	private final AMoDLandmarks landmarks;
+	private final NetworkIndex networkIndex;
+	private final TravelDisutility travelDisutility;
+	private final TravelTime travelTime;
+	private final LeastCostPathCalculator fallback;
+
+	/** The state of the search, valid for the nodes reached in this search */
+	private final double[] cost;
+	private final double[] time;
+	private final int[] previousLink;
+	private final int[] reached;
+	private final int[] settled;
+	private final NodeHeap heap = new NodeHeap();
+	private int search = 0;
+
+	/**
+	 * Constructor: AMoDLandmarkRouter
+	 * -------------------------------
+	 * @param landmarks
+	 * @param travelDisutility
+	 * @param travelTime
+	 * @param fallback:
+	 *            finds the paths the landmarks cannot be used for
+	 */
+	public AMoDLandmarkRouter(AMoDLandmarks landmarks, TravelDisutility travelDisutility, TravelTime travelTime,
+			LeastCostPathCalculator fallback) {
+		this.landmarks = landmarks;
+		this.networkIndex = landmarks.getNetworkIndex();
+		this.travelDisutility = travelDisutility;
+		this.travelTime = travelTime;
+		this.fallback = fallback;
+		int numNodes = networkIndex.numNodes();
+		this.cost = new double[numNodes];
+		this.time = new double[numNodes];
+		this.previousLink = new int[numNodes];
+		this.reached = new int[numNodes];
+		this.settled = new int[numNodes];
+	}
+
+	@Override
+	public Path calcLeastCostPath(Node fromNode, Node toNode, double startTime, Person person, Vehicle vehicle) {
+		int from = networkIndex.nodeIndex(fromNode);
+		int to = networkIndex.nodeIndex(toNode);
+		if (from == -1 || to == -1) {
+			return fallback.calcLeastCostPath(fromNode, toNode, startTime, person, vehicle);
+		}
+
+		search++;
+		heap.clear();
+		cost[from] = 0;
+		time[from] = startTime;
+		previousLink[from] = -1;
+		reached[from] = search;
+		heap.push(landmarks.lowerBound(from, to), from);
+		while (!heap.isEmpty()) {
+			int u = heap.pop();
+			if (settled[u] == search) {
+				continue;
+			}
+			settled[u] = search;
+			if (u == to) {
+				break;
+			}
+			for (int l = networkIndex.firstOutLink(u); l < networkIndex.endOutLink(u); l++) {
+				int v = networkIndex.getLinkTo(l);
+				if (settled[v] == search) {
+					continue;
+				}
+				Link link = networkIndex.getLink(l);
+				double linkCost = travelDisutility.getLinkTravelDisutility(link, time[u], person, vehicle);
+				if (linkCost < landmarks.minLinkTime(l) * (1 - 1e-9)) {
+					// the lower bounds do not hold for these costs
+					return fallback.calcLeastCostPath(fromNode, toNode, startTime, person, vehicle);
+				}
+				double newCost = cost[u] + linkCost;
+				if (reached[v] != search || newCost < cost[v]) {
+					reached[v] = search;
+					cost[v] = newCost;
+					time[v] = time[u] + travelTime.getLinkTravelTime(link, time[u], person, vehicle);
+					previousLink[v] = l;
+					heap.push(newCost + landmarks.lowerBound(v, to), v);
+				}
+			}
+		}
+		if (settled[to] != search) {
+			return null;
+		}
+
+		List<Node> nodes = new ArrayList<Node>();
+		List<Link> links = new ArrayList<Link>();
+		nodes.add(toNode);
+		for (int v = to; previousLink[v] != -1; v = networkIndex.getLinkFrom(previousLink[v])) {
+			Link link = networkIndex.getLink(previousLink[v]);
+			links.add(link);
+			nodes.add(link.getFromNode());
+		}
+		Collections.reverse(nodes);
+		Collections.reverse(links);
+		return new Path(nodes, links, time[to] - startTime, cost[to]);
+	}
+}
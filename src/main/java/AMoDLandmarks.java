@@ -0,0 +1,246 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.matsim.api.core.v01.network.Link;
+
+/**
+ * Class: AMoDLandmarks
+ *
+ * This class holds the preprocessing of the ALT (A*, landmarks, triangle
+ * inequality) router: the free-speed travel times from and to a few
+ * landmark nodes, spread out over the network. By the triangle inequality,
+ * they give a lower bound of the travel time between any two nodes, which
+ * AMoDLandmarkRouter uses to search towards the target. The landmarks are
+ * kept by the node indices of the NetworkIndex, and searched over its
+ * out-links.
+ *
+ * The preprocessing takes two Dijkstra searches per landmark over the
+ * whole network, so it is saved in the cache directory, under a name that
+ * depends on the network, and loaded from there by the next run on the
+ * same network.
+ */
+public class AMoDLandmarks {
+
+	private static final int FORMAT_VERSION = 2;
+
+	private final NetworkIndex networkIndex;
+	/** Free-speed travel time of each link index */
+	private final double[] minLinkTime;
+
+	/** fromLandmark[k][i] is the travel time from landmark k to node i */
+	private double[][] fromLandmark;
+	/** toLandmark[k][i] is the travel time from node i to landmark k */
+	private double[][] toLandmark;
+
+	/**
+	 * Constructor: AMoDLandmarks
+	 * --------------------------
+	 * Loads the preprocessing of the network from the cache directory, or
+	 * computes it and saves it there.
+	 *
+	 * @param networkIndex
+	 * @param numLandmarks
+	 * @param cacheDirectory
+	 */
+	public AMoDLandmarks(NetworkIndex networkIndex, int numLandmarks, String cacheDirectory) {
+		this.networkIndex = networkIndex;
+		this.minLinkTime = new double[networkIndex.numLinks()];
+		for (int l = 0; l < minLinkTime.length; l++) {
+			Link link = networkIndex.getLink(l);
+			minLinkTime[l] = link.getLength() / link.getFreespeed();
+		}
+
+		numLandmarks = Math.min(numLandmarks, networkIndex.numNodes());
+		File cache = new File(cacheDirectory,
+				"landmarks-" + Long.toHexString(fingerprint()) + "-" + numLandmarks + ".bin.gz");
+		if (cache.exists() && read(cache, numLandmarks)) {
+			System.out.println("Loaded " + numLandmarks + " landmarks from " + cache);
+		} else {
+			computeLandmarks(numLandmarks);
+			write(cache);
+		}
+	}
+
+	/** @return the network the landmarks are indexed by */
+	public NetworkIndex getNetworkIndex() {
+		return networkIndex;
+	}
+
+	public double minLinkTime(int l) {
+		return minLinkTime[l];
+	}
+
+	/**
+	 * Function lowerBound
+	 * -------------------
+	 * @param from
+	 * @param to
+	 * @return a lower bound of the free-speed travel time from node from to
+	 *         node to.
+	 */
+	public double lowerBound(int from, int to) {
+		double bound = 0;
+		for (int k = 0; k < fromLandmark.length; k++) {
+			// from -> landmark <= from -> to -> landmark
+			double viaTo = toLandmark[k][from] - toLandmark[k][to];
+			// landmark -> to <= landmark -> from -> to
+			double viaFrom = fromLandmark[k][to] - fromLandmark[k][from];
+			if (viaTo > bound && viaTo < Double.POSITIVE_INFINITY) {
+				bound = viaTo;
+			}
+			if (viaFrom > bound && viaFrom < Double.POSITIVE_INFINITY) {
+				bound = viaFrom;
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * Function computeLandmarks
+	 * -------------------------
+	 * Picks the landmarks one after the other, each as the node that is the
+	 * farthest (there and back) from the ones picked before.
+	 */
+	private void computeLandmarks(int numLandmarks) {
+		long start = System.currentTimeMillis();
+		int numNodes = networkIndex.numNodes();
+		// the network index has the out-links of each node, the in-links are
+		// grouped here with a counting sort
+		int[] inStart = new int[numNodes + 1];
+		int[] inLinks = new int[networkIndex.numLinks()];
+		for (int l = 0; l < inLinks.length; l++) {
+			inStart[networkIndex.getLinkTo(l) + 1]++;
+		}
+		for (int i = 1; i <= numNodes; i++) {
+			inStart[i] += inStart[i - 1];
+		}
+		int[] next = Arrays.copyOf(inStart, numNodes);
+		for (int l = 0; l < inLinks.length; l++) {
+			inLinks[next[networkIndex.getLinkTo(l)]++] = l;
+		}
+
+		fromLandmark = new double[numLandmarks][];
+		toLandmark = new double[numLandmarks][];
+		double[] nearest = new double[numNodes];
+		Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+		int landmark = 0;
+		for (int k = 0; k < numLandmarks; k++) {
+			fromLandmark[k] = search(landmark, null, null);
+			toLandmark[k] = search(landmark, inStart, inLinks);
+			int farthest = -1;
+			for (int i = 0; i < numNodes; i++) {
+				double roundTrip = fromLandmark[k][i] + toLandmark[k][i];
+				if (roundTrip < nearest[i]) {
+					nearest[i] = roundTrip;
+				}
+				if (nearest[i] < Double.POSITIVE_INFINITY && (farthest == -1 || nearest[i] > nearest[farthest])) {
+					farthest = i;
+				}
+			}
+			landmark = farthest == -1 ? 0 : farthest;
+		}
+		System.out.println("Computed " + numLandmarks + " landmarks in " + (System.currentTimeMillis() - start)
+				+ " ms");
+	}
+
+	/**
+	 * Free-speed travel times from source along the out-links, or to source
+	 * along the given in-links
+	 */
+	private double[] search(int source, int[] inStart, int[] inLinks) {
+		boolean forward = inLinks == null;
+		int numNodes = networkIndex.numNodes();
+		double[] time = new double[numNodes];
+		Arrays.fill(time, Double.POSITIVE_INFINITY);
+		boolean[] settled = new boolean[numNodes];
+		NodeHeap heap = new NodeHeap();
+		time[source] = 0;
+		heap.push(0, source);
+		while (!heap.isEmpty()) {
+			int u = heap.pop();
+			if (settled[u]) {
+				continue;
+			}
+			settled[u] = true;
+			int first = forward ? networkIndex.firstOutLink(u) : inStart[u];
+			int end = forward ? networkIndex.endOutLink(u) : inStart[u + 1];
+			for (int j = first; j < end; j++) {
+				int l = forward ? j : inLinks[j];
+				int v = forward ? networkIndex.getLinkTo(l) : networkIndex.getLinkFrom(l);
+				double t = time[u] + minLinkTime[l];
+				if (t < time[v]) {
+					time[v] = t;
+					heap.push(t, v);
+				}
+			}
+		}
+		return time;
+	}
+
+	/** Identifies the network: its nodes, links and free-speed travel times */
+	private long fingerprint() {
+		long hash = FORMAT_VERSION;
+		for (int i = 0; i < networkIndex.numNodes(); i++) {
+			hash = 31 * hash + networkIndex.getNode(i).getId().toString().hashCode();
+		}
+		for (int l = 0; l < networkIndex.numLinks(); l++) {
+			hash = 31 * hash + networkIndex.getLinkFrom(l);
+			hash = 31 * hash + networkIndex.getLinkTo(l);
+			hash = 31 * hash + Double.doubleToLongBits(minLinkTime[l]);
+		}
+		return hash;
+	}
+
+	private boolean read(File cache, int numLandmarks) {
+		int numNodes = networkIndex.numNodes();
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(cache))))) {
+			if (in.readInt() != FORMAT_VERSION || in.readInt() != numNodes || in.readInt() != numLandmarks) {
+				return false;
+			}
+			fromLandmark = new double[numLandmarks][numNodes];
+			toLandmark = new double[numLandmarks][numNodes];
+			for (int k = 0; k < numLandmarks; k++) {
+				for (int i = 0; i < numNodes; i++) {
+					fromLandmark[k][i] = in.readDouble();
+					toLandmark[k][i] = in.readDouble();
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not read the landmarks from " + cache + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void write(File cache) {
+		int numNodes = networkIndex.numNodes();
+		File directory = cache.getParentFile();
+		if (directory != null) {
+			directory.mkdirs();
+		}
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(cache))))) {
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(numNodes);
+			out.writeInt(fromLandmark.length);
+			for (int k = 0; k < fromLandmark.length; k++) {
+				for (int i = 0; i < numNodes; i++) {
+					out.writeDouble(fromLandmark[k][i]);
+					out.writeDouble(toLandmark[k][i]);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Could not save the landmarks to " + cache + ": " + e.getMessage());
+		}
+	}
+}
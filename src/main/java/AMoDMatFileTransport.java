@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jmatio.io.MatFileReader;
+import com.jmatio.io.MatFileWriter;
+import com.jmatio.types.MLArray;
+import com.jmatio.types.MLCell;
+import com.jmatio.types.MLDouble;
+
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * Class: AMoDMatFileTransport
+ *
+ * This transport exchanges data with MATLAB through .mat files in the
+ * working directory of the session: the vehicle state is written to
+ * vehicledata.mat and the paths are read back from optimizerpaths.mat (or
+ * optimizerpairs.mat for legacy rebalancing).
+ */
+public class AMoDMatFileTransport extends AMoDMatlabTransport {
+
+	/** The files that are written and read */
+	public static final String VEHICLE_DATA_FILE = "vehicledata.mat";
+	public static final String PATHS_FILE = "optimizerpaths.mat";
+	public static final String PAIRS_FILE = "optimizerpairs.mat";
+
+	@Override
+	protected void sendState(MatlabSession session, AMoDOptimizerInput input) throws IOException {
+		MLDouble matdistribution = new MLDouble("vehdistribution", input.vehdistribution,
+				input.vehdistribution.length);
+		MLDouble mattotalvehicles = new MLDouble("totalvehicles", new double[] { input.totalvehicles }, 1);
+		MLDouble mattotalpassengers = new MLDouble("totalpassengers", new double[] { input.totalpassengers }, 1);
+		MLDouble matlocations = new MLDouble("vehlocations", input.vehlocations, input.vehlocations.length);
+		MLDouble matwaitingpass = new MLDouble("waitingpassengers", input.waitingpassengers,
+				input.waitingpassengers.length);
+
+		ArrayList<MLArray> list = new ArrayList<MLArray>();
+		list.add(matdistribution);
+		list.add(mattotalvehicles);
+		list.add(mattotalpassengers);
+		list.add(matlocations);
+		list.add(matwaitingpass);
+
+		new MatFileWriter(session.file(VEHICLE_DATA_FILE), list);
+	}
+
+	@Override
+	protected void runOptimization(MatlabSession session, String optimizationArgs) throws MatlabInvocationException {
+		session.getProxy().eval("runOptimization(" + optimizationArgs + ")");
+	}
+
+	@Override
+	protected AMoDOptimizerPaths receivePaths(MatlabSession session, boolean legacyRebalance) throws IOException {
+		AMoDOptimizerPaths result = new AMoDOptimizerPaths();
+		if (!legacyRebalance) {
+			MatFileReader matfilereader = new MatFileReader(session.file(PATHS_FILE));
+			MLDouble numvehiclesarr = (MLDouble) matfilereader.getMLArray("numvehicles");
+			result.numvehicles = numvehiclesarr.getArray()[0][0];
+			result.passpaths = readPaths(matfilereader, "pass");
+			result.rebpaths = readPaths(matfilereader, "reb");
+		} else {
+			MatFileReader matfilereader = new MatFileReader(session.file(PAIRS_FILE));
+			MLCell matRebQueue = (MLCell) matfilereader.getMLArray("rebalanceQueue");
+			MLDouble numvehiclesarr = (MLDouble) matfilereader.getMLArray("numvehicles");
+			result.numvehicles = numvehiclesarr.getArray()[0][0];
+			result.rebalanceQueue = makeRebQueue(matRebQueue);
+		}
+		return result;
+	}
+
+	/**
+	 * Function readPaths
+	 * ------------------
+	 * Reads the paths saved by saveOptimizerPaths.m in compressed sparse row
+	 * form. The arrays are saved as doubles and are read straight out of the
+	 * buffers of the MLDoubles, without going through a double[][].
+	 *
+	 * @param matfilereader
+	 * @param prefix:
+	 *            "pass" or "reb"
+	 * @return the paths
+	 */
+	private static AMoDPathBuffer readPaths(MatFileReader matfilereader, String prefix) {
+		MLDouble nodes = (MLDouble) matfilereader.getMLArray(prefix + "nodes");
+		MLDouble offsets = (MLDouble) matfilereader.getMLArray(prefix + "offsets");
+		MLDouble flows = (MLDouble) matfilereader.getMLArray(prefix + "flows");
+		if (offsets == null) {
+			return new AMoDPathBuffer();
+		}
+		int[] offsetArray = toIntArray(offsets);
+		return new AMoDPathBuffer(nodes == null ? new int[0] : toIntArray(nodes), offsetArray,
+				flows == null ? null : toDoubleArray(flows, offsetArray.length - 1));
+	}
+
+	private static int[] toIntArray(MLDouble array) {
+		DoubleBuffer buffer = array.getRealByteBuffer().asDoubleBuffer();
+		int[] result = new int[array.getM() * array.getN()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (int) buffer.get(i);
+		}
+		return result;
+	}
+
+	private static double[] toDoubleArray(MLDouble array, int length) {
+		double[] result = new double[length];
+		array.getRealByteBuffer().asDoubleBuffer().get(result, 0, Math.min(length, array.getM() * array.getN()));
+		return result;
+	}
+
+	private static List<List<Integer>> makeRebQueue(MLCell matRebQueue) {
+		List<List<Integer>> result = new ArrayList<List<Integer>>();
+		List<MLArray> stationPairs = matRebQueue.cells();
+		for (int i = 0; i < stationPairs.size(); i++) {
+			result.add(new ArrayList<Integer>());
+			MLDouble curr = (MLDouble) stationPairs.get(i);
+			double[][] arr = curr.getArray();
+			for (int j = 0; j < arr.length; j++) {
+				result.get(i).add((int) arr[j][0]);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import matlabcontrol.MatlabConnectionException;
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * Class: AMoDMatlabFlowOptimizer
+ *
+ * This optimizer backend runs runOptimization.m in MATLAB, which solves the
+ * flow problems with CPLEX. The data is exchanged through an
+ * AMoDMatlabTransport, in a session checked out of the MatlabSessionPool
+ * for the duration of each solve.
+ */
+public class AMoDMatlabFlowOptimizer implements AMoDFlowOptimizer {
+
+	/** The MATLAB sessions and how data is moved in and out of them */
+	private final MatlabSessionPool sessions;
+	private final AMoDMatlabTransport transport;
+	/** The from and to node of every link, written to each session */
+	private final double[][] linkMap;
+
+	/** Parameters of runOptimization */
+	private final int timeHorizon;
+	private final double rebWeight;
+	private final double tripThreshold;
+	private final boolean legacyRebalance;
+	private final String optimizerDataFile;
+
+	/**
+	 * Constructor: AMoDMatlabFlowOptimizer
+	 * ------------------------------------
+	 * Sets up the transport. MATLAB is connected on the first solve.
+	 *
+	 * @param params
+	 * @param linkMap:
+	 *            the MATLAB node numbers of the from and to node of every
+	 *            link
+	 */
+	public AMoDMatlabFlowOptimizer(AMoDTaxiOptimizerParams params, double[][] linkMap) {
+		this.linkMap = linkMap;
+		this.sessions = MatlabSessionPool.getPool(params.matlabSessions);
+		if (params.matlabTransport.equals("file")) {
+			transport = new AMoDMatFileTransport();
+		} else {
+			transport = new AMoDInMemoryTransport();
+		}
+		this.timeHorizon = params.timeHorizon;
+		this.rebWeight = params.rebWeight;
+		this.tripThreshold = params.tripThreshold;
+		this.legacyRebalance = params.legacyRebalance;
+		this.optimizerDataFile = params.optimizerDataFile;
+	}
+
+	@Override
+	public AMoDOptimizerPaths optimize(AMoDOptimizerInput input)
+			throws IOException, MatlabConnectionException, MatlabInvocationException {
+		MatlabSession session;
+		try {
+			session = sessions.checkout();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a MATLAB session");
+		}
+		try {
+			return optimize(session, input);
+		} finally {
+			sessions.checkin(session);
+		}
+	}
+
+	private AMoDOptimizerPaths optimize(MatlabSession session, AMoDOptimizerInput input)
+			throws IOException, MatlabInvocationException {
+		// Call MATLAB script to generate trips
+
+		System.out.println("Starting optmizer in MATLAB session " + session.getId() + "... this could take a while");
+
+		String timeHorizonAsStr = Integer.toString(timeHorizon);
+		String optimstartTime = Double.toString(input.startTime);
+		String optimizationArgs = optimstartTime + "," + timeHorizonAsStr + "," + rebWeight + "," + tripThreshold
+				+ "," + (legacyRebalance ? 1 : 0) + ",'" + optimizerDataFile + "'";
+		String displayCommand = "disp('runOptimization(" + optimstartTime + "," + timeHorizonAsStr + "," + rebWeight
+				+ "," + tripThreshold + "," + (legacyRebalance ? 1 : 0) + "," + optimizerDataFile + ")')";
+		session.writeLinkMap(linkMap);
+		session.getProxy().eval(displayCommand);
+		AMoDOptimizerPaths paths = transport.exchange(session, input, optimizationArgs, legacyRebalance);
+		System.out.println("MATLAB exchange: " + transport.timingsToString());
+		return paths;
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * Class: AMoDMatlabTransport
+ *
+ * This class moves the state of the simulation into MATLAB, runs
+ * runOptimization.m and brings the resulting paths back. Subclasses decide
+ * how the data travels between Java and MATLAB. The time spent on each leg
+ * of the exchange is recorded so that it can be printed with the
+ * diagnostics.
+ */
+public abstract class AMoDMatlabTransport {
+
+	/** Time (ms) spent on each leg of the last exchange */
+	public long lastSendTime;
+	public long lastSolveTime;
+	public long lastReceiveTime;
+
+	/** Time (ms) spent on each leg of all exchanges so far */
+	public long totalSendTime;
+	public long totalSolveTime;
+	public long totalReceiveTime;
+	public int exchangeCount;
+
+	/**
+	 * Function exchange
+	 * -----------------
+	 * Sends the snapshot to MATLAB, runs runOptimization with the given
+	 * arguments and reads back the paths.
+	 *
+	 * @param session
+	 * @param input
+	 * @param optimizationArgs:
+	 *            the arguments of runOptimization, without the vehicle data
+	 * @param legacyRebalance
+	 * @return the raw result of the optimizer
+	 * @throws IOException
+	 * @throws MatlabInvocationException
+	 */
+	public AMoDOptimizerPaths exchange(MatlabSession session, AMoDOptimizerInput input, String optimizationArgs,
+			boolean legacyRebalance) throws IOException, MatlabInvocationException {
+		long t0 = System.currentTimeMillis();
+		sendState(session, input);
+		long t1 = System.currentTimeMillis();
+		runOptimization(session, optimizationArgs);
+		long t2 = System.currentTimeMillis();
+		AMoDOptimizerPaths result = receivePaths(session, legacyRebalance);
+		long t3 = System.currentTimeMillis();
+
+		lastSendTime = t1 - t0;
+		lastSolveTime = t2 - t1;
+		lastReceiveTime = t3 - t2;
+		totalSendTime += lastSendTime;
+		totalSolveTime += lastSolveTime;
+		totalReceiveTime += lastReceiveTime;
+		exchangeCount++;
+		return result;
+	}
+
+	/**
+	 * Function timingsToString
+	 * ------------------------
+	 * @return a human-readable summary of the time spent on the exchange.
+	 */
+	public String timingsToString() {
+		return "send " + lastSendTime + " ms, solve " + lastSolveTime + " ms, receive " + lastReceiveTime
+				+ " ms (totals over " + exchangeCount + " epochs: send " + totalSendTime + " ms, solve "
+				+ totalSolveTime + " ms, receive " + totalReceiveTime + " ms)";
+	}
+
+	/**
+	 * Function sendState
+	 * ------------------
+	 * Makes the snapshot available to runOptimization.m.
+	 *
+	 * @param session
+	 * @param input
+	 * @throws IOException
+	 * @throws MatlabInvocationException
+	 */
+	protected abstract void sendState(MatlabSession session, AMoDOptimizerInput input)
+			throws IOException, MatlabInvocationException;
+
+	/**
+	 * Function runOptimization
+	 * ------------------------
+	 * Runs runOptimization.m with the given arguments.
+	 *
+	 * @param session
+	 * @param optimizationArgs
+	 * @throws MatlabInvocationException
+	 */
+	protected abstract void runOptimization(MatlabSession session, String optimizationArgs)
+			throws MatlabInvocationException;
+
+	/**
+	 * Function receivePaths
+	 * ---------------------
+	 * Reads the result of runOptimization.m.
+	 *
+	 * @param session
+	 * @param legacyRebalance
+	 * @return the raw result of the optimizer
+	 * @throws IOException
+	 * @throws MatlabInvocationException
+	 */
+	protected abstract AMoDOptimizerPaths receivePaths(MatlabSession session, boolean legacyRebalance)
+			throws IOException, MatlabInvocationException;
+}
@@ -0,0 +1,159 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Class: AMoDMinCostFlow
+ *
+ * This class solves single-commodity minimum cost flow problems with the
+ * successive shortest path algorithm. Nodes are numbered 0..n-1, edges have
+ * integer capacities and non-negative costs. Dijkstra with node potentials
+ * is used to find each augmenting path, so the flows it returns are
+ * integral.
+ *
+ * It is used by the AMoDJavaFlowOptimizer in place of the LPs that
+ * runOptimization.m hands to CPLEX.
+ */
+public class AMoDMinCostFlow {
+
+	/** Number of nodes */
+	private final int n;
+
+	/** Edges in adjacency-array form. Edge e^1 is the reverse of edge e. */
+	private int[] head;
+	private int[] next;
+	private int[] to;
+	private int[] cap;
+	private double[] cost;
+	private int edgeCount;
+
+	/**
+	 * Constructor: AMoDMinCostFlow
+	 * ----------------------------
+	 * Creates an empty flow network.
+	 *
+	 * @param n:
+	 *            the number of nodes
+	 * @param expectedEdges:
+	 *            the number of edges that will be added
+	 */
+	public AMoDMinCostFlow(int n, int expectedEdges) {
+		this.n = n;
+		head = new int[n];
+		Arrays.fill(head, -1);
+		int size = Math.max(2, 2 * expectedEdges);
+		next = new int[size];
+		to = new int[size];
+		cap = new int[size];
+		cost = new double[size];
+	}
+
+	/**
+	 * Function addEdge
+	 * ----------------
+	 * Adds a directed edge from -> to with the given capacity and cost.
+	 *
+	 * @param from
+	 * @param target
+	 * @param capacity
+	 * @param edgeCost
+	 * @return the index of the edge, which can be used with getFlow.
+	 */
+	public int addEdge(int from, int target, int capacity, double edgeCost) {
+		if (edgeCost < 0) {
+			throw new IllegalArgumentException("Negative edge cost " + edgeCost);
+		}
+		if (edgeCount + 2 > to.length) {
+			int size = 2 * to.length;
+			next = Arrays.copyOf(next, size);
+			to = Arrays.copyOf(to, size);
+			cap = Arrays.copyOf(cap, size);
+			cost = Arrays.copyOf(cost, size);
+		}
+		int e = edgeCount;
+		addHalfEdge(from, target, capacity, edgeCost);
+		addHalfEdge(target, from, 0, -edgeCost);
+		return e;
+	}
+
+	private void addHalfEdge(int from, int target, int capacity, double edgeCost) {
+		to[edgeCount] = target;
+		cap[edgeCount] = capacity;
+		cost[edgeCount] = edgeCost;
+		next[edgeCount] = head[from];
+		head[from] = edgeCount;
+		edgeCount++;
+	}
+
+	/**
+	 * Function getFlow
+	 * ----------------
+	 * @param edge:
+	 *            an index returned by addEdge
+	 * @return the flow on the edge after solve has run.
+	 */
+	public int getFlow(int edge) {
+		return cap[edge ^ 1];
+	}
+
+	/**
+	 * Function solve
+	 * --------------
+	 * Sends as much flow as possible from source to sink at minimum cost.
+	 *
+	 * @param source
+	 * @param sink
+	 * @return the amount of flow that was sent.
+	 */
+	public int solve(int source, int sink) {
+		double[] potential = new double[n];
+		double[] dist = new double[n];
+		int[] prevEdge = new int[n];
+		int totalFlow = 0;
+
+		while (true) {
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			Arrays.fill(prevEdge, -1);
+			dist[source] = 0;
+			PriorityQueue<double[]> queue = new PriorityQueue<double[]>(16, (a, b) -> Double.compare(a[0], b[0]));
+			queue.add(new double[] { 0, source });
+			while (!queue.isEmpty()) {
+				double[] top = queue.poll();
+				int u = (int) top[1];
+				if (top[0] > dist[u]) {
+					continue;
+				}
+				for (int e = head[u]; e != -1; e = next[e]) {
+					if (cap[e] <= 0) {
+						continue;
+					}
+					int v = to[e];
+					double reduced = cost[e] + potential[u] - potential[v];
+					double candidate = dist[u] + Math.max(0, reduced);
+					if (candidate < dist[v]) {
+						dist[v] = candidate;
+						prevEdge[v] = e;
+						queue.add(new double[] { candidate, v });
+					}
+				}
+			}
+			if (dist[sink] == Double.POSITIVE_INFINITY) {
+				return totalFlow;
+			}
+			for (int v = 0; v < n; v++) {
+				if (dist[v] < Double.POSITIVE_INFINITY) {
+					potential[v] += dist[v];
+				}
+			}
+
+			int push = Integer.MAX_VALUE;
+			for (int v = sink; v != source; v = to[prevEdge[v] ^ 1]) {
+				push = Math.min(push, cap[prevEdge[v]]);
+			}
+			for (int v = sink; v != source; v = to[prevEdge[v] ^ 1]) {
+				cap[prevEdge[v]] -= push;
+				cap[prevEdge[v] ^ 1] += push;
+			}
+			totalFlow += push;
+		}
+	}
+}
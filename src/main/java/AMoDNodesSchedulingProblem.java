@@ -30,6 +30,8 @@ import org.matsim.core.router.util.TravelTime;
  * This class contains the functionality to dispatch cars
  * and make sure that they are going where they are supposed to be going. NODE-WISE
  * 
+ * The optimizer creates it once and calls it every time step.
+ * 
  * @author yhindy
  *
  */
@@ -43,13 +45,19 @@ public class AMoDNodesSchedulingProblem
 	/** The context of the simulation */
 	private final TaxiOptimizerContext optimContext;
 	/** The dispatcher to find the best vehicle */
-    private final BestDispatchFinder dispatchFinder;
-    /** The router to find routes in case cplex hasn't made one */
-    private final LeastCostPathCalculator router;
+    private final AMoDVehicleFinder dispatchFinder;
+    /** Gives the router to find routes in case cplex hasn't made one */
+    private final AMoDRouterFactory routerFactory;
     /** Timer of the simulation */
     private final MobsimTimer timer;
     /** TravelTime calculator */
     private final TravelTime travelTime;
+    /** The state of the vehicles, updated with the schedules changed here */
+    private final AMoDVehicleIndex vehicleIndex;
+    /** The fleet, to look for idle vehicles in */
+    private final Vehicle[] fleet;
+    /** Picks the rebalancing routes, seeded by the optimizer */
+    private final SplittableRandom random;
     
     /**
      * Constructor: AMoDSchedulingProblem
@@ -59,18 +67,24 @@ public class AMoDNodesSchedulingProblem
      * 
      * @param optimContext
      * @param vrpFinder
-     * @param router
+     * @param routerFactory
      * @param nodes_to_stations 
      * @param stations_to_nodes 
+     * @param vehicleIndex
+     * @param random
      */
-    public AMoDNodesSchedulingProblem(TaxiOptimizerContext optimContext, BestDispatchFinder vrpFinder, 
-    		LeastCostPathCalculator router)
+    public AMoDNodesSchedulingProblem(TaxiOptimizerContext optimContext, AMoDVehicleFinder vrpFinder, 
+    		AMoDRouterFactory routerFactory, AMoDVehicleIndex vehicleIndex, SplittableRandom random)
     {
         this.optimContext = optimContext;
         this.dispatchFinder = vrpFinder;
-        this.router = router;
+        this.routerFactory = routerFactory;
         this.timer = optimContext.timer;
         this.travelTime = optimContext.travelTime;
+        this.vehicleIndex = vehicleIndex;
+        Collection<? extends Vehicle> vehicles = optimContext.taxiData.getVehicles().values();
+        this.fleet = vehicles.toArray(new Vehicle[vehicles.size()]);
+        this.random = random;
     }
     
     /**
@@ -107,8 +121,8 @@ public class AMoDNodesSchedulingProblem
             Link toLink = req.getToLink();
             
             usedcount += scheduleOneRequest(best.vehicle, req, currentTime, fromlink, toLink, routes);
+            vehicleIndex.update(best.vehicle);
             
-            //TODO search only through available vehicles
             //TODO what about k-nearstvehicle filtering?
 
           
@@ -167,7 +181,7 @@ public class AMoDNodesSchedulingProblem
                 Schedules.getLastTask(schedule).getEndTime();
                 
         VrpPathWithTravelData p1 = VrpPaths.calcAndCreatePath(lastTask.getLink(), fromlink, t0, //path to pickup
-                router, travelTime);
+                routerFactory.getLegRouter(), travelTime);
         schedule.addTask(new TaxiEmptyDriveTask(p1));
         
         double t1 = p1.getArrivalTime(); //pickup of passenger
@@ -177,7 +191,7 @@ public class AMoDNodesSchedulingProblem
         int count = 0;
         VrpPathWithTravelData path = findBestPath(fromlink, toLink, possiblepaths, t2);
         if (path == null) { //path is not in the map lookup
-        	path = VrpPaths.calcAndCreatePath(fromlink, toLink, t2, router,
+        	path = VrpPaths.calcAndCreatePath(fromlink, toLink, t2, routerFactory.getLegRouter(),
                     travelTime);
         } else {
         	count ++;
@@ -248,9 +262,9 @@ public class AMoDNodesSchedulingProblem
 	public int rebalanceVehicles(Map<Link, Set<Path>> reb_routes, double proportion) {
 		System.out.println("Rebalancing...");
 		int count = 0;
-		double chance = Math.random();
-		for (Vehicle veh : optimContext.taxiData.getVehicles().values()) {
-			if (optimContext.scheduler.isIdle(veh) && chance <= proportion) {
+		double chance = random.nextDouble();
+		for (Vehicle veh : fleet) {
+			if (vehicleIndex.isIdle(veh) && chance <= proportion) {
 				count++;
 				rebalanceVehicle(veh, reb_routes);
 			} //TODO: figure out why vehicles aren't rebalancing
@@ -275,7 +289,7 @@ public class AMoDNodesSchedulingProblem
 		Path chosen;
 		if (reb_routes.get(lastlink) != null) {
 			Set<Path> possiblerebroutes = reb_routes.get(lastlink);
-			chosen = (Path) AMoDSchedulingUtils.chooseRandomThing(possiblerebroutes);
+			chosen = (Path) AMoDSchedulingUtils.chooseRandomThing(possiblerebroutes, random);
 			if (chosen.links.size() == 1 || chosen.nodes.size() == 1) {
 				return;
 			}
@@ -349,6 +363,7 @@ public class AMoDNodesSchedulingProblem
 		double arrivalTime = path.getArrivalTime();
 		double tEnd = Math.max(arrivalTime, curr.getVehicle().getT1());
         curr.addTask(new TaxiStayTask(arrivalTime, tEnd, tolink));
+        vehicleIndex.update(curr.getVehicle());
 	}
 
 }
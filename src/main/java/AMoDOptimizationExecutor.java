@@ -0,0 +1,172 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Class: AMoDOptimizationExecutor
+ *
+ * This class runs the optimizer on a background thread so that the
+ * simulation does not have to stop while MATLAB/CPLEX is solving. Only one
+ * solve is in flight at a time. The result of a solve is only handed out
+ * once the solve has finished and optimizerDelay seconds of simulation time
+ * have passed since the snapshot was taken.
+ *
+ * It is also used to give a blocking solve a time budget (solveWithin).
+ */
+public class AMoDOptimizationExecutor {
+
+	/** The thread that runs the optimizer */
+	private final ExecutorService executor;
+	/** How long (in simulation time) to wait before using a result */
+	private final int optimizerDelay;
+
+	/** The solve that is currently running, if any */
+	private Future<AMoDOptimizerOutput> pending;
+	/** The simulation time at which the pending solve was started */
+	private double pendingStartTime;
+	/**
+	 * Whether a solve given a budget is still on the thread, which it may be
+	 * for a while after it was cancelled
+	 */
+	private volatile boolean budgetedRunning = false;
+
+	/**
+	 * Constructor: AMoDOptimizationExecutor
+	 * -------------------------------------
+	 * Creates the executor and its background thread.
+	 *
+	 * @param optimizerDelay
+	 */
+	public AMoDOptimizationExecutor(int optimizerDelay) {
+		this.optimizerDelay = optimizerDelay;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AMoD-optimizer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Function isBusy
+	 * ---------------
+	 * @return whether a solve is currently in flight.
+	 */
+	public boolean isBusy() {
+		return pending != null;
+	}
+
+	/**
+	 * Function submit
+	 * ---------------
+	 * Starts a solve in the background. If the previous solve has not been
+	 * collected yet, the new one is not started.
+	 *
+	 * @param startTime
+	 * @param solve
+	 * @return whether the solve was started.
+	 */
+	public boolean submit(double startTime, Callable<AMoDOptimizerOutput> solve) {
+		if (isBusy()) {
+			return false;
+		}
+		pendingStartTime = startTime;
+		pending = executor.submit(solve);
+		return true;
+	}
+
+	/**
+	 * Function poll
+	 * -------------
+	 * Checks whether the pending solve is ready to be used at simTime.
+	 *
+	 * @param simTime
+	 * @return the output of the solve, or null if there is nothing to use
+	 *         yet.
+	 * @throws ExecutionException
+	 *             if the solve threw an exception. The executor is ready for
+	 *             the next solve afterwards.
+	 */
+	public AMoDOptimizerOutput poll(double simTime) throws ExecutionException {
+		if (pending == null || !pending.isDone() || simTime < pendingStartTime + optimizerDelay) {
+			return null;
+		}
+		Future<AMoDOptimizerOutput> done = pending;
+		pending = null;
+		try {
+			return done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Function solveWithin
+	 * --------------------
+	 * Runs a solve and waits at most budgetMillis for it. A solve that runs
+	 * over its budget is cancelled (interrupted), since by then its result
+	 * is too old to be used; no new solve is started until it has left the
+	 * thread.
+	 *
+	 * @param startTime
+	 * @param solve
+	 * @param budgetMillis
+	 * @return the output of the solve, or null if it did not finish within
+	 *         the budget or an earlier solve is still running.
+	 * @throws ExecutionException
+	 *             if the solve threw an exception.
+	 */
+	public AMoDOptimizerOutput solveWithin(double startTime, final Callable<AMoDOptimizerOutput> solve,
+			long budgetMillis) throws ExecutionException {
+		if (budgetedRunning || (pending != null && !pending.isDone())) {
+			return null;
+		}
+		pendingStartTime = startTime;
+		pending = executor.submit(new Callable<AMoDOptimizerOutput>() {
+			@Override
+			public AMoDOptimizerOutput call() throws Exception {
+				budgetedRunning = true;
+				try {
+					return solve.call();
+				} finally {
+					budgetedRunning = false;
+				}
+			}
+		});
+		try {
+			AMoDOptimizerOutput output = pending.get(budgetMillis, TimeUnit.MILLISECONDS);
+			pending = null;
+			return output;
+		} catch (TimeoutException e) {
+			pending.cancel(true);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			pending = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Function shutdown
+	 * -----------------
+	 * Stops the background thread, cancelling any running solve.
+	 */
+	public void shutdown() {
+		if (pending != null) {
+			pending.cancel(true);
+			pending = null;
+		}
+		executor.shutdownNow();
+	}
+}
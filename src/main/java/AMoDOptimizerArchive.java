@@ -0,0 +1,196 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class: AMoDOptimizerArchive
+ *
+ * This class reads and writes the per-run archive of optimizer epochs used
+ * by the record and replay modes. Each epoch is appended to the file as its
+ * own gzip member, so the archive stays readable even if the simulation is
+ * stopped before it ends. An epoch holds:
+ *
+ * - the simulation time of the epoch
+ *
+ * - the vehicle distribution and the waiting passengers per station
+ *
+ * - the raw paths returned by the optimizer and the number of vehicles it
+ * requires
+ *
+ * - whether the optimizer ran out of its time budget, in which case the
+ * epoch holds the fallback rebalancing that was used instead
+ *
+ * The route tables are decoded from the raw paths deterministically, so
+ * replaying the paths reproduces the same route tables.
+ */
+public class AMoDOptimizerArchive {
+
+	private static final int VERSION = 3;
+
+	/**
+	 * Function clear
+	 * --------------
+	 * Starts an empty archive, removing the one of a previous run.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void clear(String file) throws IOException {
+		File f = new File(file);
+		if (f.getParentFile() != null) {
+			f.getParentFile().mkdirs();
+		}
+		new FileOutputStream(f).close();
+	}
+
+	/**
+	 * Function appendEpoch
+	 * --------------------
+	 * Appends one epoch to the archive. Epochs may be appended from the
+	 * optimizer thread and from the simulation thread.
+	 *
+	 * @param file
+	 * @param input:
+	 *            the state of the simulation the optimizer was called with
+	 * @param paths:
+	 *            the result of the optimizer
+	 * @throws IOException
+	 */
+	public static synchronized void appendEpoch(String file, AMoDOptimizerInput input, AMoDOptimizerPaths paths)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file, true))))) {
+			out.writeInt(VERSION);
+			out.writeDouble(input.startTime);
+			out.writeBoolean(paths.fallback);
+			writeCounts(out, input.vehdistribution);
+			writeCounts(out, input.waitingpassengers);
+			out.writeDouble(paths.numvehicles);
+			writePaths(out, paths.passpaths);
+			writePaths(out, paths.rebpaths);
+			if (paths.rebalanceQueue == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(paths.rebalanceQueue.size());
+				for (List<Integer> queue : paths.rebalanceQueue) {
+					out.writeInt(queue.size());
+					for (int station : queue) {
+						out.writeInt(station);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Function readEpochs
+	 * -------------------
+	 * Reads all the epochs of an archive. If a solve ran over its time budget
+	 * and was still recorded when it finished, the fallback recorded for its
+	 * time is kept, since that is what the simulation used.
+	 *
+	 * @param file
+	 * @return the optimizer result of each epoch, keyed by simulation time
+	 * @throws IOException
+	 */
+	public static TreeMap<Double, AMoDOptimizerPaths> readEpochs(String file) throws IOException {
+		TreeMap<Double, AMoDOptimizerPaths> result = new TreeMap<Double, AMoDOptimizerPaths>();
+		// GZIPInputStream reads the concatenated members one after another
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			while (true) {
+				int version;
+				try {
+					version = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (version != VERSION) {
+					throw new IOException("Unknown optimizer archive version " + version + " in " + file);
+				}
+				double startTime = in.readDouble();
+				boolean fallback = in.readBoolean();
+				readCounts(in); // vehicle distribution
+				readCounts(in); // waiting passengers
+				AMoDOptimizerPaths paths = new AMoDOptimizerPaths();
+				paths.fallback = fallback;
+				paths.numvehicles = in.readDouble();
+				paths.passpaths = readPaths(in);
+				paths.rebpaths = readPaths(in);
+				int numQueues = in.readInt();
+				if (numQueues >= 0) {
+					paths.rebalanceQueue = new ArrayList<List<Integer>>(numQueues);
+					for (int i = 0; i < numQueues; i++) {
+						int size = in.readInt();
+						List<Integer> queue = new ArrayList<Integer>(size);
+						for (int j = 0; j < size; j++) {
+							queue.add(in.readInt());
+						}
+						paths.rebalanceQueue.add(queue);
+					}
+				}
+				AMoDOptimizerPaths previous = result.get(startTime);
+				if (previous == null || !previous.fallback) {
+					result.put(startTime, paths);
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Station counts are whole numbers, so they are stored as ints */
+	private static void writeCounts(DataOutputStream out, double[] counts) throws IOException {
+		out.writeInt(counts.length);
+		for (double c : counts) {
+			out.writeInt((int) c);
+		}
+	}
+
+	private static double[] readCounts(DataInputStream in) throws IOException {
+		double[] counts = new double[in.readInt()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = in.readInt();
+		}
+		return counts;
+	}
+
+	/** Paths are stored in the compressed sparse row form of AMoDPathBuffer */
+	private static void writePaths(DataOutputStream out, AMoDPathBuffer paths) throws IOException {
+		out.writeInt(paths.size());
+		int numNodes = paths.size() == 0 ? 0 : paths.end(paths.size() - 1);
+		out.writeInt(numNodes);
+		for (int p = 0; p < paths.size(); p++) {
+			out.writeInt(paths.end(p));
+			out.writeDouble(paths.flow(p));
+		}
+		for (int i = 0; i < numNodes; i++) {
+			out.writeInt(paths.node(i));
+		}
+	}
+
+	private static AMoDPathBuffer readPaths(DataInputStream in) throws IOException {
+		int numPaths = in.readInt();
+		int[] nodes = new int[in.readInt()];
+		int[] offsets = new int[numPaths + 1];
+		double[] flows = new double[numPaths];
+		for (int p = 0; p < numPaths; p++) {
+			offsets[p + 1] = in.readInt();
+			flows[p] = in.readDouble();
+		}
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = in.readInt();
+		}
+		return new AMoDPathBuffer(nodes, offsets, flows);
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * Class: AMoDOptimizerInput
+ *
+ * This class holds a snapshot of the station-level state of the simulation
+ * that the optimizer needs for one decision epoch. It is taken on the
+ * simulation thread so that the optimizer can work on it off the simulation
+ * thread without touching the live vehicle schedules.
+ */
+public class AMoDOptimizerInput {
+
+	/** The simulation time at which the snapshot was taken */
+	public final double startTime;
+	/** The ith entry is the number of vehicles at station i + 1 */
+	public final double[] vehdistribution;
+	/** The ith entry is the number of vehicles on link i + 1 */
+	public final double[] vehlocations;
+	/** The ith entry is the number of passengers waiting at station i + 1 */
+	public final double[] waitingpassengers;
+	/** The total number of vehicles in the simulation */
+	public final double totalvehicles;
+	/** The number of passengers currently being served */
+	public final double totalpassengers;
+	/** The number of idle vehicles when the snapshot was taken */
+	public final int numberIdle;
+
+	/**
+	 * Constructor: AMoDOptimizerInput
+	 * -------------------------------
+	 * Stores the snapshot of the simulation.
+	 *
+	 * @param startTime
+	 * @param vehdistribution
+	 * @param vehlocations
+	 * @param waitingpassengers
+	 * @param totalvehicles
+	 * @param totalpassengers
+	 * @param numberIdle
+	 */
+	public AMoDOptimizerInput(double startTime, double[] vehdistribution, double[] vehlocations,
+			double[] waitingpassengers, double totalvehicles, double totalpassengers, int numberIdle) {
+		this.startTime = startTime;
+		this.vehdistribution = vehdistribution;
+		this.vehlocations = vehlocations;
+		this.waitingpassengers = waitingpassengers;
+		this.totalvehicles = totalvehicles;
+		this.totalpassengers = totalpassengers;
+		this.numberIdle = numberIdle;
+	}
+}
@@ -0,0 +1,57 @@
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.router.util.LeastCostPathCalculator.Path;
+
+/**
+ * Class: AMoDOptimizerOutput
+ *
+ * This class holds the result of one run of the optimizer: the
+ * route tables and the number of vehicles the optimizer wants to use. It is
+ * built off the simulation thread and handed to the AMoDTaxiOptimizer once
+ * it is ready to be used.
+ */
+public class AMoDOptimizerOutput {
+
+	/** The input that this output was computed from */
+	public final AMoDOptimizerInput input;
+
+	/** Station-wise routes */
+	public AMoDRouteTable station_routes;
+
+	/** Node-wise routes */
+	public Map<Link, Set<Path>> routes;
+	public Map<Link, Set<Path>> reb_routes;
+
+	/** Station pairs to rebalance between, used by legacy rebalancing */
+	public List<List<Integer>> rebalance_queue;
+
+	/** True if the optimizer ran out of time and this is the Java fallback */
+	public boolean fallback;
+
+	/** The number of vehicles the optimizer needs */
+	public double required_vehicles;
+
+	/**
+	 * Constructor: AMoDOptimizerOutput
+	 * --------------------------------
+	 * Creates an empty output for the given input.
+	 *
+	 * @param input
+	 */
+	public AMoDOptimizerOutput(AMoDOptimizerInput input) {
+		this.input = input;
+	}
+
+	/**
+	 * Function fractionToRebalance
+	 * ----------------------------
+	 * @return the fraction of the idle vehicles (at the time of the snapshot)
+	 *         that the optimizer wants to use.
+	 */
+	public double fractionToRebalance() {
+		return required_vehicles / input.numberIdle;
+	}
+}
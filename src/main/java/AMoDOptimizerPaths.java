@@ -0,0 +1,26 @@
+import java.util.List;
+
+/**
+ * Class: AMoDOptimizerPaths
+ *
+ * This class holds the raw result of runOptimization.m as it comes back
+ * from MATLAB, before the paths are turned into MATSim routes. Each path is
+ * stored as the list of MATLAB node numbers it goes through, in an
+ * AMoDPathBuffer.
+ */
+public class AMoDOptimizerPaths {
+
+	/** Passenger paths */
+	public AMoDPathBuffer passpaths = new AMoDPathBuffer();
+	/** Rebalancing paths */
+	public AMoDPathBuffer rebpaths = new AMoDPathBuffer();
+	/** Station pairs to rebalance between, used by legacy rebalancing */
+	public List<List<Integer>> rebalanceQueue;
+	/** The number of vehicles the optimizer needs */
+	public double numvehicles;
+	/**
+	 * Whether the optimizer ran out of its time budget, and the epoch is the
+	 * fallback rebalancing of rebalanceQueue
+	 */
+	public boolean fallback = false;
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+/**
+ * Class: AMoDPathBuffer
+ *
+ * This class holds a set of paths in compressed sparse row form: the nodes
+ * of all paths are concatenated in one int array and path p goes from
+ * index offsets[p] (inclusive) to offsets[p + 1] (exclusive). Each path can
+ * also carry a flow weight. This is how runOptimization.m hands over its
+ * paths (see pathsToCSR.m), so reading them takes a few array copies
+ * instead of one MATLAB cell per path.
+ *
+ * Paths can also be appended one at a time, which is how the Java
+ * optimizer and the optimizer archive build them.
+ */
+public class AMoDPathBuffer {
+
+	/** Instance variables */
+	private int[] nodes;
+	private int[] offsets;
+	private double[] flows;
+	private int numPaths;
+
+	/**
+	 * Constructor: AMoDPathBuffer
+	 * ---------------------------
+	 * Creates an empty buffer.
+	 */
+	public AMoDPathBuffer() {
+		nodes = new int[16];
+		offsets = new int[9];
+		flows = new double[8];
+	}
+
+	/**
+	 * Constructor: AMoDPathBuffer
+	 * ---------------------------
+	 * Wraps arrays that are already in compressed sparse row form. The
+	 * arrays are used as they are, not copied.
+	 *
+	 * @param nodes:
+	 *            the concatenated nodes of all paths
+	 * @param offsets:
+	 *            numPaths + 1 entries, starting at 0
+	 * @param flows:
+	 *            one weight per path, or null
+	 */
+	public AMoDPathBuffer(int[] nodes, int[] offsets, double[] flows) {
+		if (offsets.length == 0 || offsets[0] != 0 || offsets[offsets.length - 1] > nodes.length) {
+			throw new IllegalArgumentException("Offsets do not describe the node array");
+		}
+		this.nodes = nodes;
+		this.offsets = offsets;
+		this.numPaths = offsets.length - 1;
+		this.flows = flows != null ? flows : new double[numPaths];
+		if (this.flows.length < numPaths) {
+			throw new IllegalArgumentException("Expected " + numPaths + " flows, got " + this.flows.length);
+		}
+	}
+
+	/**
+	 * Function add
+	 * ------------
+	 * Appends a path.
+	 *
+	 * @param path:
+	 *            the nodes of the path
+	 * @param length:
+	 *            how many entries of path to use
+	 * @param flow
+	 */
+	public void add(int[] path, int length, double flow) {
+		int start = offsets[numPaths];
+		if (start + length > nodes.length) {
+			nodes = Arrays.copyOf(nodes, Math.max(2 * nodes.length, start + length));
+		}
+		if (numPaths + 2 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+			flows = Arrays.copyOf(flows, offsets.length);
+		}
+		System.arraycopy(path, 0, nodes, start, length);
+		flows[numPaths] = flow;
+		numPaths++;
+		offsets[numPaths] = start + length;
+	}
+
+	/** @return the number of paths */
+	public int size() {
+		return numPaths;
+	}
+
+	/** @return the index of the first node of path p */
+	public int start(int p) {
+		return offsets[p];
+	}
+
+	/** @return the index after the last node of path p */
+	public int end(int p) {
+		return offsets[p + 1];
+	}
+
+	/** @return the node at the given index (between start(p) and end(p)) */
+	public int node(int index) {
+		return nodes[index];
+	}
+
+	/** @return the flow weight of path p */
+	public double flow(int p) {
+		return flows[p];
+	}
+}
@@ -0,0 +1,92 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.matsim.core.router.util.LeastCostPathCalculator.Path;
+
+/**
+ * Class: AMoDPathDecoder
+ *
+ * This class decodes all the paths of an AMoDPathBuffer into MATSim Paths,
+ * for when they are needed right away (node-wise routing). Each path is
+ * decoded on its own, so the buffer is split into ranges that are decoded
+ * in parallel on a ForkJoinPool. Path p always ends up at index p of the
+ * result, so the result does not depend on the parallelism.
+ */
+public class AMoDPathDecoder {
+
+	/** Ranges of at most this many paths are decoded by one task */
+	private static final int CHUNK_SIZE = 256;
+
+	private final NetworkIndex networkIndex;
+	/** null to decode on the calling thread */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Constructor: AMoDPathDecoder
+	 * ----------------------------
+	 * @param networkIndex
+	 * @param parallelism:
+	 *            the number of threads to decode with, 1 to decode on the
+	 *            calling thread
+	 */
+	public AMoDPathDecoder(NetworkIndex networkIndex, int parallelism) {
+		this.networkIndex = networkIndex;
+		this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/**
+	 * Function decodeAll
+	 * ------------------
+	 * @param paths
+	 * @return the decoded paths, path p at index p.
+	 */
+	public Path[] decodeAll(AMoDPathBuffer paths) {
+		Path[] result = new Path[paths.size()];
+		DecodeRange all = new DecodeRange(paths, result, 0, paths.size());
+		if (pool == null) {
+			all.compute();
+		} else {
+			pool.invoke(all);
+		}
+		return result;
+	}
+
+	/**
+	 * Function shutdown
+	 * -----------------
+	 * Stops the decoding threads.
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	private class DecodeRange extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final AMoDPathBuffer paths;
+		private final Path[] result;
+		private final int from;
+		private final int to;
+
+		DecodeRange(AMoDPathBuffer paths, Path[] result, int from, int to) {
+			this.paths = paths;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK_SIZE || pool == null) {
+				for (int p = from; p < to; p++) {
+					result[p] = AMoDRouteTable.decodePath(networkIndex, paths, p);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new DecodeRange(paths, result, from, mid), new DecodeRange(paths, result, mid, to));
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.matsim.api.core.v01.network.Link;
+
+/**
+ * Class: AMoDPathStore
+ *
+ * This class turns the paths of the optimizer into AMoDStoredPaths and
+ * interns them, so that a route the optimizer returns again in a later
+ * epoch is not stored twice. A path stays in the store as long as one of
+ * the last few route tables uses it.
+ *
+ * Paths are cleaned up once, when they are stored, so that the scheduling
+ * code can take them as they are: repeated nodes and loops are cut out,
+ * and paths through nodes that are not in the network or between nodes
+ * that no link connects are dropped, and so are paths with fewer links than
+ * their use needs (rebalancing routes of a single link). How many paths
+ * needed what is kept
+ * as statistics.
+ *
+ * Route tables of different epochs can intern at the same time, so the
+ * store is safe to use from several threads.
+ *
+ * Each optimizer has its own store, which numbers the route tables built on
+ * it (nextVersion), so that versions count the epochs of that optimizer
+ * even when several optimizers run in one JVM.
+ */
+public class AMoDPathStore {
+
+	/** How many epochs a path is kept after the last table that used it */
+	private static final int RETAINED_EPOCHS = 3;
+
+	private final NetworkIndex networkIndex;
+	/** Free-speed travel time of each link index */
+	private final double[] linkTime;
+	private final ConcurrentMap<AMoDStoredPath, AMoDStoredPath> paths = new ConcurrentHashMap<AMoDStoredPath, AMoDStoredPath>();
+
+	/** Where each node index is on the path being cleaned up, or -1 */
+	private final ThreadLocal<int[]> positions = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			int[] position = new int[networkIndex.numNodes()];
+			Arrays.fill(position, -1);
+			return position;
+		}
+	};
+
+	/** Statistics of the clean-up */
+	private final AtomicLong loaded = new AtomicLong();
+	private final AtomicLong duplicatesRemoved = new AtomicLong();
+	private final AtomicLong loopsRemoved = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** The version of the last route table built on this store */
+	private final AtomicLong versions = new AtomicLong();
+
+	/**
+	 * Constructor: AMoDPathStore
+	 * --------------------------
+	 * @param networkIndex
+	 */
+	public AMoDPathStore(NetworkIndex networkIndex) {
+		this.networkIndex = networkIndex;
+		this.linkTime = new double[networkIndex.numLinks()];
+		for (int i = 0; i < linkTime.length; i++) {
+			Link l = networkIndex.getLink(i);
+			linkTime[i] = l.getLength() / l.getFreespeed();
+		}
+	}
+
+	public NetworkIndex getNetworkIndex() {
+		return networkIndex;
+	}
+
+	/**
+	 * Function nextVersion
+	 * --------------------
+	 * @return the version of a new route table built on this store, one
+	 *         more than the one before.
+	 */
+	public long nextVersion() {
+		return versions.incrementAndGet();
+	}
+
+	/**
+	 * Function intern
+	 * ---------------
+	 * Cleans up path p and returns the stored path with its links.
+	 *
+	 * @param buffer
+	 * @param p
+	 * @param version:
+	 *            the version of the route table the path is for
+	 * @param minLinks:
+	 *            the fewest links the path may have once cleaned up
+	 * @return the stored path, or null if the path was dropped or has fewer
+	 *         than minLinks links.
+	 */
+	public AMoDStoredPath intern(AMoDPathBuffer buffer, int p, long version, int minLinks) {
+		loaded.incrementAndGet();
+		int[] links = normalize(buffer, buffer.start(p), buffer.end(p));
+		if (links == null || links.length < minLinks) {
+			dropped.incrementAndGet();
+			return null;
+		}
+		AMoDStoredPath path = new AMoDStoredPath(networkIndex, links, linkTime);
+		AMoDStoredPath interned = paths.putIfAbsent(path, path);
+		if (interned != null) {
+			path = interned;
+		}
+		if (path.lastUsed < version) {
+			path.lastUsed = version;
+		}
+		return path;
+	}
+
+	/**
+	 * Function normalize
+	 * ------------------
+	 * Turns the MATLAB node numbers between first and last into the links of
+	 * the path. A node that comes back later on the path closes a loop (or
+	 * repeats the node right before it), and everything in between is cut
+	 * out, which takes one pass over the path.
+	 *
+	 * @param buffer
+	 * @param first
+	 * @param last
+	 * @return the link indices of the path, or null if the path is not valid
+	 *         or has no links.
+	 */
+	private int[] normalize(AMoDPathBuffer buffer, int first, int last) {
+		int[] position = positions.get();
+		int[] nodes = new int[last - first];
+		int numNodes = 0;
+		boolean valid = true;
+		for (int i = first; i < last && valid; i++) {
+			int node = networkIndex.nodeOfNumber(buffer.node(i));
+			if (node == -1) {
+				valid = false;
+			} else if (position[node] != -1) {
+				if (position[node] == numNodes - 1) {
+					duplicatesRemoved.incrementAndGet();
+				} else {
+					loopsRemoved.incrementAndGet();
+				}
+				for (int j = position[node] + 1; j < numNodes; j++) {
+					position[nodes[j]] = -1;
+				}
+				numNodes = position[node] + 1;
+			} else {
+				position[node] = numNodes;
+				nodes[numNodes++] = node;
+			}
+		}
+		for (int j = 0; j < numNodes; j++) {
+			position[nodes[j]] = -1;
+		}
+		if (!valid || numNodes < 2) {
+			return null;
+		}
+
+		int[] links = new int[numNodes - 1];
+		for (int j = 0; j < links.length; j++) {
+			links[j] = networkIndex.linkBetween(nodes[j], nodes[j + 1]);
+			if (links[j] == -1) {
+				return null;
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Function getStatistics
+	 * ----------------------
+	 * @return how many paths were loaded and what their clean-up took.
+	 */
+	public String getStatistics() {
+		return loaded.get() + " loaded, " + duplicatesRemoved.get() + " repeated nodes and " + loopsRemoved.get()
+				+ " loops removed, " + dropped.get() + " dropped";
+	}
+
+	/**
+	 * Function evict
+	 * --------------
+	 * Drops the paths that no recent route table uses.
+	 *
+	 * @param version:
+	 *            the version of the route table now in use
+	 */
+	public void evict(long version) {
+		Iterator<AMoDStoredPath> it = paths.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().lastUsed <= version - RETAINED_EPOCHS) {
+				it.remove();
+			}
+		}
+	}
+
+	/** @return the number of paths in the store */
+	public int size() {
+		return paths.size();
+	}
+}
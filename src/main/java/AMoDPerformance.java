@@ -48,6 +48,9 @@ public class AMoDPerformance {
 	
 	public TaxiOptimizerContext optimcontext;
 	
+	/** The state of the vehicles, kept by the optimizer */
+	private AMoDVehicleIndex vehicleIndex;
+	
 	/**
 	 * Constructor: AMoDPerformance
 	 * -----------------------------
@@ -55,12 +58,14 @@ public class AMoDPerformance {
 	 * it the necessary data it needs to compute various statistics.
 	 * 
 	 * @param optimcontext
+	 * @param vehicleIndex
 	 */
-	public AMoDPerformance(TaxiOptimizerContext optimcontext)
+	public AMoDPerformance(TaxiOptimizerContext optimcontext, AMoDVehicleIndex vehicleIndex)
 	{
 		vehicles = optimcontext.taxiData.getVehicles().values();
 		totalVehicles = vehicles.size();
 		this.optimcontext = optimcontext;
+		this.vehicleIndex = vehicleIndex;
 	}
 	
 	/**
@@ -144,7 +149,7 @@ public class AMoDPerformance {
 	public int numberIdle() {
 		int count = 0;
 		for (Vehicle v : vehicles) {
-			if (optimcontext.scheduler.isIdle(v)) {
+			if (vehicleIndex.isIdle(v)) {
 				count++;
 			}
 		}
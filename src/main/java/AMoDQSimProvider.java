@@ -151,7 +151,18 @@ public class AMoDQSimProvider
         ConfigGroup optimizerConfigGroup = taxiCfg.getOptimizerConfigGroup();
         Configuration optimizerConfig = new MapConfiguration(optimizerConfigGroup.getParams());
         
-        return new AMoDTaxiOptimizer(optimContext, new AMoDTaxiOptimizerParams(optimizerConfig));
+        AMoDTaxiOptimizerParams params = new AMoDTaxiOptimizerParams(optimizerConfig);
+        
+        // one index and one routing network for all the searches of the optimizer
+        NetworkIndex networkIndex = NetworkIndex.load(scenario.getNetwork(), params.stationMap);
+        AMoDLandmarks landmarks = null;
+        if (params.legRouter.equals("landmarks")) {
+            landmarks = new AMoDLandmarks(networkIndex, params.landmarkCount, params.landmarkCache);
+        }
+        AMoDRouterFactory routerFactory = new AMoDRouterFactory(scenario.getNetwork(), travelDisutility,
+                travelTime, landmarks);
+        
+        return new AMoDTaxiOptimizer(optimContext, params, networkIndex, routerFactory);
     }
 
     /** 
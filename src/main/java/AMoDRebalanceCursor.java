@@ -0,0 +1,124 @@
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Class: AMoDRebalanceCursor
+ *
+ * This class keeps track of which rebalancing routes of an AMoDRouteTable
+ * have been handed to vehicles, so that each route is driven at most once
+ * per epoch without changing the table itself. Each station keeps the
+ * indices of its routes that are still unused, and a used route is swapped
+ * out of the unused part.
+ *
+ * A cursor belongs to one table and is only used on the simulation thread.
+ */
+public class AMoDRebalanceCursor {
+
+	private final AMoDRouteTable table;
+	private final SplittableRandom random;
+
+	/** The indices of the routes of each station, the unused ones first */
+	private final int[][] order;
+	/** How many routes of each station are unused */
+	private final int[] unused;
+
+	/**
+	 * Constructor: AMoDRebalanceCursor
+	 * --------------------------------
+	 * Starts with all the routes of the table unused.
+	 *
+	 * @param table
+	 * @param random:
+	 *            picks the routes, only used by this cursor
+	 */
+	public AMoDRebalanceCursor(AMoDRouteTable table, SplittableRandom random) {
+		this.table = table;
+		this.random = random;
+		this.order = new int[table.numStations() + 1][];
+		this.unused = new int[table.numStations() + 1];
+	}
+
+	/** @return the table whose routes are tracked */
+	public AMoDRouteTable getTable() {
+		return table;
+	}
+
+	/**
+	 * Function hasUnusedRoutes
+	 * ------------------------
+	 * @param station
+	 * @return whether chooseRoute can still pick a route out of the station.
+	 */
+	public boolean hasUnusedRoutes(int station) {
+		if (station < 0 || station >= order.length) {
+			return false;
+		}
+		List<AMoDStoredPath> routes = table.getRebalancingRoutes(station);
+		if (routes == null) {
+			return false;
+		}
+		return order[station] == null ? !routes.isEmpty() : unused[station] > 0;
+	}
+
+	/**
+	 * Function chooseRoute
+	 * --------------------
+	 * Picks one of the unused rebalancing routes out of a station at random.
+	 * The route stays unused until it is passed to consume.
+	 *
+	 * @param station
+	 * @return the route, or null if the station has no unused routes.
+	 */
+	public AMoDStoredPath chooseRoute(int station) {
+		List<AMoDStoredPath> routes = table.getRebalancingRoutes(station);
+		if (routes == null) {
+			return null;
+		}
+		int[] indices = indicesOf(station, routes);
+		int left = unused[station];
+		if (left == 0) {
+			return null;
+		}
+		return routes.get(indices[random.nextInt(left)]);
+	}
+
+	/**
+	 * Function consume
+	 * ----------------
+	 * Marks a route out of a station as used.
+	 *
+	 * @param station
+	 * @param route:
+	 *            a route returned by chooseRoute for the station
+	 */
+	public void consume(int station, AMoDStoredPath route) {
+		List<AMoDStoredPath> routes = table.getRebalancingRoutes(station);
+		if (routes == null) {
+			return;
+		}
+		int[] indices = indicesOf(station, routes);
+		int left = unused[station];
+		for (int i = 0; i < left; i++) {
+			if (routes.get(indices[i]) == route) {
+				int used = indices[i];
+				indices[i] = indices[left - 1];
+				indices[left - 1] = used;
+				unused[station] = left - 1;
+				return;
+			}
+		}
+	}
+
+	private int[] indicesOf(int station, List<AMoDStoredPath> routes) {
+		int[] indices = order[station];
+		if (indices == null) {
+			indices = new int[routes.size()];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = i;
+			}
+			order[station] = indices;
+			unused[station] = indices.length;
+		}
+		return indices;
+	}
+}
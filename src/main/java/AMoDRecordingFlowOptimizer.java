@@ -0,0 +1,59 @@
+import java.io.IOException;
+
+import matlabcontrol.MatlabConnectionException;
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * Class: AMoDRecordingFlowOptimizer
+ *
+ * This optimizer backend runs another backend and appends every epoch it
+ * solves to an AMoDOptimizerArchive, so that the run can later be replayed
+ * with the AMoDReplayFlowOptimizer. Epochs where the optimizer ran out of its
+ * time budget are recorded with the fallback rebalancing used instead.
+ */
+public class AMoDRecordingFlowOptimizer implements AMoDFlowOptimizer {
+
+	private final AMoDFlowOptimizer optimizer;
+	private final String archiveFile;
+
+	/**
+	 * Constructor: AMoDRecordingFlowOptimizer
+	 * ---------------------------------------
+	 * Starts a new archive.
+	 *
+	 * @param optimizer:
+	 *            the backend that does the actual work
+	 * @param archiveFile
+	 * @throws IOException
+	 */
+	public AMoDRecordingFlowOptimizer(AMoDFlowOptimizer optimizer, String archiveFile) throws IOException {
+		this.optimizer = optimizer;
+		this.archiveFile = archiveFile;
+		AMoDOptimizerArchive.clear(archiveFile);
+		System.out.println("Recording optimizer epochs to " + archiveFile);
+	}
+
+	@Override
+	public AMoDOptimizerPaths optimize(AMoDOptimizerInput input)
+			throws IOException, MatlabConnectionException, MatlabInvocationException {
+		AMoDOptimizerPaths paths = optimizer.optimize(input);
+		AMoDOptimizerArchive.appendEpoch(archiveFile, input, paths);
+		return paths;
+	}
+
+	/**
+	 * Function recordFallback
+	 * -----------------------
+	 * Appends an epoch where the optimizer ran out of its time budget, so
+	 * that the replay uses the same fallback rebalancing.
+	 *
+	 * @param input
+	 * @param paths:
+	 *            the fallback rebalancing
+	 * @throws IOException
+	 */
+	public void recordFallback(AMoDOptimizerInput input, AMoDOptimizerPaths paths) throws IOException {
+		paths.fallback = true;
+		AMoDOptimizerArchive.appendEpoch(archiveFile, input, paths);
+	}
+}
@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class: AMoDReplayFlowOptimizer
+ *
+ * This optimizer backend serves the epochs recorded by the
+ * AMoDRecordingFlowOptimizer back to the simulation, keyed by simulation
+ * time. It needs neither MATLAB nor a solver, so dispatch and rebalancing
+ * changes can be benchmarked deterministically at full speed.
+ */
+public class AMoDReplayFlowOptimizer implements AMoDFlowOptimizer {
+
+	private final TreeMap<Double, AMoDOptimizerPaths> epochs;
+	private final String archiveFile;
+
+	/**
+	 * Constructor: AMoDReplayFlowOptimizer
+	 * ------------------------------------
+	 * Loads the whole archive.
+	 *
+	 * @param archiveFile
+	 * @throws IOException
+	 */
+	public AMoDReplayFlowOptimizer(String archiveFile) throws IOException {
+		this.archiveFile = archiveFile;
+		epochs = AMoDOptimizerArchive.readEpochs(archiveFile);
+		System.out.println("Replaying " + epochs.size() + " optimizer epochs from " + archiveFile);
+	}
+
+	/**
+	 * Function optimize
+	 * -----------------
+	 * Returns the epoch recorded at the given time. If the time was not
+	 * recorded (e.g. the reoptimization time step changed), the latest
+	 * earlier epoch is used instead.
+	 */
+	@Override
+	public AMoDOptimizerPaths optimize(AMoDOptimizerInput input) throws IOException {
+		Map.Entry<Double, AMoDOptimizerPaths> epoch = epochs.floorEntry(input.startTime);
+		if (epoch == null) {
+			throw new IOException("No optimizer epoch at or before time " + input.startTime + " in " + archiveFile);
+		}
+		if (epoch.getKey() != input.startTime) {
+			System.out.println("No optimizer epoch recorded at time " + input.startTime + ", replaying the one of time "
+					+ epoch.getKey());
+		}
+		// the rebalancing queues are used up by the scheduler, so hand out a
+		// copy of them (the paths are only read)
+		AMoDOptimizerPaths recorded = epoch.getValue();
+		AMoDOptimizerPaths paths = new AMoDOptimizerPaths();
+		paths.passpaths = recorded.passpaths;
+		paths.rebpaths = recorded.rebpaths;
+		paths.numvehicles = recorded.numvehicles;
+		paths.fallback = recorded.fallback;
+		if (recorded.rebalanceQueue != null) {
+			paths.rebalanceQueue = new ArrayList<List<Integer>>();
+			for (List<Integer> queue : recorded.rebalanceQueue) {
+				paths.rebalanceQueue.add(new ArrayList<Integer>(queue));
+			}
+		}
+		return paths;
+	}
+}
@@ -0,0 +1,105 @@
+import java.util.SplittableRandom;
+
+/**
+ * Class: AMoDRouteSampler
+ *
+ * This class holds the routes between two stations and picks one of them
+ * at random, each with a probability proportional to the flow the
+ * optimizer put on it, so that the vehicles follow the split of the
+ * optimal flow. It uses Walker's alias method: building the tables takes
+ * linear time, and each pick takes two random numbers and no allocation.
+ *
+ * If the flows are not usable (none positive), the routes are picked
+ * uniformly.
+ */
+public class AMoDRouteSampler {
+
+	private final AMoDStoredPath[] routes;
+	/** Probability of keeping column i rather than taking its alias */
+	private final double[] prob;
+	private final int[] alias;
+
+	/**
+	 * Constructor: AMoDRouteSampler
+	 * -----------------------------
+	 * Builds the alias tables.
+	 *
+	 * @param routes
+	 * @param flows:
+	 *            the flow of each route
+	 */
+	public AMoDRouteSampler(AMoDStoredPath[] routes, double[] flows) {
+		int n = routes.length;
+		this.routes = routes;
+		this.prob = new double[n];
+		this.alias = new int[n];
+
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			if (flows[i] > 0) {
+				total += flows[i];
+			}
+		}
+
+		// scaled so that the average column is 1
+		double[] scaled = new double[n];
+		for (int i = 0; i < n; i++) {
+			scaled[i] = total > 0 ? Math.max(flows[i], 0) * n / total : 1;
+		}
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0;
+		int numLarge = 0;
+		for (int i = 0; i < n; i++) {
+			if (scaled[i] < 1) {
+				small[numSmall++] = i;
+			} else {
+				large[numLarge++] = i;
+			}
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int less = small[--numSmall];
+			int more = large[--numLarge];
+			prob[less] = scaled[less];
+			alias[less] = more;
+			scaled[more] = scaled[more] + scaled[less] - 1;
+			if (scaled[more] < 1) {
+				small[numSmall++] = more;
+			} else {
+				large[numLarge++] = more;
+			}
+		}
+		// what is left is 1 up to rounding
+		while (numLarge > 0) {
+			prob[large[--numLarge]] = 1;
+		}
+		while (numSmall > 0) {
+			prob[small[--numSmall]] = 1;
+		}
+	}
+
+	/** @return the number of routes */
+	public int size() {
+		return routes.length;
+	}
+
+	/** @return route i */
+	public AMoDStoredPath get(int i) {
+		return routes[i];
+	}
+
+	/**
+	 * Function sample
+	 * ---------------
+	 * @param random
+	 * @return a route, picked with probability proportional to its flow, or
+	 *         null if there are no routes.
+	 */
+	public AMoDStoredPath sample(SplittableRandom random) {
+		if (routes.length == 0) {
+			return null;
+		}
+		int column = random.nextInt(routes.length);
+		return random.nextDouble() < prob[column] ? routes[column] : routes[alias[column]];
+	}
+}
@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.LeastCostPathCalculator.Path;
+
+/**
+ * Class: AMoDRouteTable
+ *
+ * This class holds the station-wise routes of one optimizer epoch. It keeps
+ * the paths the way the optimizer returned them (MATLAB node numbers in an
+ * AMoDPathBuffer) and only indexes them by station when it is built. The
+ * paths between two stations are decoded into AMoDStoredPaths (interned by
+ * the AMoDPathStore) the first time they are asked for, and kept until the
+ * table is replaced by the one of the next epoch. Most station pairs are
+ * never asked for before that, so this saves decoding them at all. The
+ * routes between two stations come in an AMoDRouteSampler, which picks
+ * them in proportion to their flows.
+ *
+ * Only the station pairs the optimizer returned paths for are kept, in a
+ * sorted array of their keys start * (numStations + 1) + end (station 0
+ * being "no station"), so a table takes memory in the number of paths and
+ * not in the square of the number of stations, and a lookup is a binary
+ * search, without boxing or hashing. Rebalancing paths are kept by start
+ * station in flat arrays.
+ *
+ * A table does not change once it is built: the routes it hands out are
+ * read-only, and which rebalancing routes have been used up is tracked
+ * outside of it (AMoDRebalanceCursor). Decoding a station pair the first
+ * time it is asked for only fills a cache, and two threads decoding the
+ * same pair at once agree on the first result, so a table can be built on
+ * one thread and read on any number of others. Each table has a version,
+ * which increases with every table built on the same AMoDPathStore.
+ */
+public class AMoDRouteTable {
+
+	/** Stands for "no routes" in the caches, once a pair has been looked at */
+	private static final AMoDRouteSampler NO_PASS_ROUTES = new AMoDRouteSampler(new AMoDStoredPath[0], new double[0]);
+	private static final List<AMoDStoredPath> NO_REB_ROUTES = Collections.emptyList();
+
+	private final long version;
+	private final NetworkIndex networkIndex;
+	private final AMoDPathStore pathStore;
+	private final AMoDPathBuffer passpaths;
+	private final AMoDPathBuffer rebpaths;
+
+	/** numStations + 1, the stride of the station pair keys */
+	private final int stride;
+
+	/** The keys of the station pairs with passenger paths, sorted */
+	private final long[] passPairs;
+	/**
+	 * The passenger paths of passPairs[k] are passPaths[passOffsets[k]] up
+	 * to passPaths[passOffsets[k + 1]], and the rebalancing paths out of
+	 * station s are rebPaths[rebOffsets[s]] up to rebPaths[rebOffsets[s + 1]]
+	 */
+	private final int[] passOffsets;
+	private final int[] passPaths;
+	private final int[] rebOffsets;
+	private final int[] rebPaths;
+
+	/** The paths that have been decoded so far, by index of passPairs and by station */
+	private final AtomicReferenceArray<AMoDRouteSampler> passRoutes;
+	private final AtomicReferenceArray<List<AMoDStoredPath>> rebRoutes;
+
+	/**
+	 * Constructor: AMoDRouteTable
+	 * ---------------------------
+	 * Indexes the paths of the optimizer by their start and end stations.
+	 * Paths of less than two nodes have no links and are left out, and so
+	 * are paths that start or end at a node that is not in the network.
+	 *
+	 * @param pathStore
+	 * @param passpaths
+	 * @param rebpaths
+	 */
+	public AMoDRouteTable(AMoDPathStore pathStore, AMoDPathBuffer passpaths, AMoDPathBuffer rebpaths) {
+		this.version = pathStore.nextVersion();
+		this.pathStore = pathStore;
+		this.networkIndex = pathStore.getNetworkIndex();
+		this.passpaths = passpaths;
+		this.rebpaths = rebpaths;
+		this.stride = networkIndex.numStations() + 1;
+
+		// sort the paths by station pair key, and by index within a pair
+		int numPaths = passpaths.size();
+		long[] sorted = new long[numPaths];
+		int numSorted = 0;
+		for (int p = 0; p < numPaths; p++) {
+			if (passpaths.end(p) - passpaths.start(p) >= 2
+					&& networkIndex.nodeOfNumber(passpaths.node(passpaths.start(p))) != -1
+					&& networkIndex.nodeOfNumber(passpaths.node(passpaths.end(p) - 1)) != -1) {
+				int start_station = stationOfNumber(passpaths.node(passpaths.start(p)));
+				int end_station = stationOfNumber(passpaths.node(passpaths.end(p) - 1));
+				sorted[numSorted++] = pairKey(start_station, end_station) * numPaths + p;
+			}
+		}
+		Arrays.sort(sorted, 0, numSorted);
+		long[] pairs = new long[numSorted];
+		int[] offsets = new int[numSorted + 1];
+		passPaths = new int[numSorted];
+		int numPairs = 0;
+		for (int i = 0; i < numSorted; i++) {
+			long pair = sorted[i] / numPaths;
+			if (numPairs == 0 || pairs[numPairs - 1] != pair) {
+				pairs[numPairs] = pair;
+				offsets[numPairs] = i;
+				numPairs++;
+			}
+			passPaths[i] = (int) (sorted[i] % numPaths);
+		}
+		offsets[numPairs] = numSorted;
+		passPairs = Arrays.copyOf(pairs, numPairs);
+		passOffsets = Arrays.copyOf(offsets, numPairs + 1);
+
+		int[] rebStation = new int[rebpaths.size()];
+		for (int p = 0; p < rebpaths.size(); p++) {
+			if (rebpaths.end(p) - rebpaths.start(p) < 2
+					|| networkIndex.nodeOfNumber(rebpaths.node(rebpaths.start(p))) == -1) {
+				rebStation[p] = -1;
+			} else {
+				rebStation[p] = stationOfNumber(rebpaths.node(rebpaths.start(p)));
+			}
+		}
+		rebOffsets = new int[stride + 1];
+		rebPaths = groupBy(rebStation, rebOffsets);
+
+		passRoutes = new AtomicReferenceArray<AMoDRouteSampler>(numPairs);
+		rebRoutes = new AtomicReferenceArray<List<AMoDStoredPath>>(stride);
+	}
+
+	/**
+	 * Sorts the paths by key (counting sort, so paths with the same key stay
+	 * in order). Paths with key -1 are left out.
+	 *
+	 * @return the sorted paths; those with key k are between offsets[k] and
+	 *         offsets[k + 1].
+	 */
+	private static int[] groupBy(int[] keys, int[] offsets) {
+		for (int key : keys) {
+			if (key >= 0) {
+				offsets[key + 1]++;
+			}
+		}
+		for (int k = 0; k < offsets.length - 1; k++) {
+			offsets[k + 1] += offsets[k];
+		}
+		int[] sorted = new int[offsets[offsets.length - 1]];
+		int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+		for (int p = 0; p < keys.length; p++) {
+			if (keys[p] >= 0) {
+				sorted[next[keys[p]]++] = p;
+			}
+		}
+		return sorted;
+	}
+
+	private long pairKey(int startStation, int endStation) {
+		return (long) startStation * stride + endStation;
+	}
+
+	/** @return the station of a MATLAB node number, 0 if the node is not in the network */
+	private int stationOfNumber(int number) {
+		int node = networkIndex.nodeOfNumber(number);
+		return node == -1 ? 0 : networkIndex.nodeToStation[node];
+	}
+
+	/** @return the version of the table, higher for newer tables of the same path store */
+	public long getVersion() {
+		return version;
+	}
+
+	/** @return the number of stations, which are numbered 1..numStations */
+	public int numStations() {
+		return stride - 1;
+	}
+
+	/**
+	 * Function getPassengerRoutes
+	 * ---------------------------
+	 * @param startStation
+	 * @param endStation
+	 * @return the passenger paths from one station to the other, or null if
+	 *         the optimizer returned none.
+	 */
+	public AMoDRouteSampler getPassengerRoutes(int startStation, int endStation) {
+		if (startStation < 0 || startStation >= stride || endStation < 0 || endStation >= stride) {
+			return null;
+		}
+		int pair = Arrays.binarySearch(passPairs, pairKey(startStation, endStation));
+		if (pair < 0) {
+			return null;
+		}
+		AMoDRouteSampler routes = passRoutes.get(pair);
+		if (routes == null) {
+			int from = passOffsets[pair];
+			int to = passOffsets[pair + 1];
+			routes = NO_PASS_ROUTES;
+			if (to > from) {
+				AMoDStoredPath[] decoded = new AMoDStoredPath[to - from];
+				double[] flows = new double[to - from];
+				int numDecoded = 0;
+				for (int i = from; i < to; i++) {
+					AMoDStoredPath path = pathStore.intern(passpaths, passPaths[i], version, 1);
+					if (path != null) {
+						decoded[numDecoded] = path;
+						flows[numDecoded] = passpaths.flow(passPaths[i]);
+						numDecoded++;
+					}
+				}
+				if (numDecoded > 0) {
+					routes = new AMoDRouteSampler(Arrays.copyOf(decoded, numDecoded), Arrays.copyOf(flows, numDecoded));
+				}
+			}
+			// two threads decoding the same pair keep the first result
+			if (!passRoutes.compareAndSet(pair, null, routes)) {
+				routes = passRoutes.get(pair);
+			}
+		}
+		return routes == NO_PASS_ROUTES ? null : routes;
+	}
+
+	/**
+	 * Function getRebalancingRoutes
+	 * -----------------------------
+	 * @param station
+	 * @return the rebalancing paths out of the station (read-only), or null
+	 *         if the optimizer returned none. Paths of a single link are
+	 *         left out.
+	 */
+	public List<AMoDStoredPath> getRebalancingRoutes(int station) {
+		if (station < 0 || station >= stride) {
+			return null;
+		}
+		List<AMoDStoredPath> routes = rebRoutes.get(station);
+		if (routes == null) {
+			int from = rebOffsets[station];
+			int to = rebOffsets[station + 1];
+			routes = NO_REB_ROUTES;
+			List<AMoDStoredPath> decoded = new ArrayList<AMoDStoredPath>(to - from);
+			for (int i = from; i < to; i++) {
+				// a single link is too short to rebalance along
+				AMoDStoredPath path = pathStore.intern(rebpaths, rebPaths[i], version, 2);
+				if (path != null) {
+					decoded.add(path);
+				}
+			}
+			if (!decoded.isEmpty()) {
+				routes = Collections.unmodifiableList(decoded);
+			}
+			if (!rebRoutes.compareAndSet(station, null, routes)) {
+				routes = rebRoutes.get(station);
+			}
+		}
+		return routes == NO_REB_ROUTES ? null : routes;
+	}
+
+	/**
+	 * Function decodePath
+	 * -------------------
+	 * Turns the MATLAB node numbers of path p into the nodes and links it
+	 * goes through, using the network index. A path of a single node has no
+	 * links and is left empty, and nodes that are not in the network are
+	 * skipped. This is used for node-wise routing, which
+	 * needs all the paths as MATSim Paths right away.
+	 *
+	 * @param networkIndex
+	 * @param paths
+	 * @param p
+	 * @return the path as a MATSim Path
+	 */
+	public static Path decodePath(NetworkIndex networkIndex, AMoDPathBuffer paths, int p) {
+		int first = paths.start(p);
+		int last = paths.end(p);
+		List<Node> nodelist = new ArrayList<Node>(last - first);
+		List<Link> linklist = new ArrayList<Link>(last - first);
+		if (last - first >= 2) {
+			int curr = -1;
+			for (int i = first; i < last; i++) {
+				int next = networkIndex.nodeOfNumber(paths.node(i));
+				if (next == -1) {
+					continue;
+				}
+				int link = curr == -1 ? -1 : networkIndex.linkBetween(curr, next);
+				if (link != -1) {
+					linklist.add(networkIndex.getLink(link));
+				}
+				nodelist.add(networkIndex.getNode(next));
+				curr = next;
+			}
+		}
+		return AMoDSchedulingUtils.convertNodeListtoPath(nodelist, linklist);
+	}
+}
@@ -0,0 +1,108 @@
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.router.ArrayFastRouterDelegateFactory;
+import org.matsim.core.router.FastMultiNodeDijkstra;
+import org.matsim.core.router.FastRouterDelegateFactory;
+import org.matsim.core.router.MultiNodeDijkstra;
+import org.matsim.core.router.util.ArrayRoutingNetworkFactory;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.PreProcessDijkstra;
+import org.matsim.core.router.util.RoutingNetwork;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * Class: AMoDRouterFactory
+ *
+ * This class builds the routing network of the simulation once and hands
+ * out routers that share it. The routing network is not changed by the
+ * routers (they keep the state of their searches to themselves), but a
+ * router can only do one search at a time, so every thread gets its own.
+ *
+ * The leg routers find the paths between two nodes (pickups and the legs
+ * patched around the routes of the optimizer). With landmarks, they are
+ * AMoDLandmarkRouters, which fall back to the Dijkstra of their thread.
+ */
+public class AMoDRouterFactory {
+
+	private final RoutingNetwork routingNetwork;
+	private final TravelDisutility travelDisutility;
+	private final TravelTime travelTime;
+	private final FastRouterDelegateFactory fastRouterFactory = new ArrayFastRouterDelegateFactory();
+	/** The preprocessing of the leg routers, or null to use Dijkstra */
+	private final AMoDLandmarks landmarks;
+
+	/** The router of each thread */
+	private final ThreadLocal<MultiNodeDijkstra> routers = new ThreadLocal<MultiNodeDijkstra>() {
+		@Override
+		protected MultiNodeDijkstra initialValue() {
+			return createRouter();
+		}
+	};
+	/** The leg router of each thread */
+	private final ThreadLocal<LeastCostPathCalculator> legRouters = new ThreadLocal<LeastCostPathCalculator>() {
+		@Override
+		protected LeastCostPathCalculator initialValue() {
+			if (landmarks == null) {
+				return getRouter();
+			}
+			return new AMoDLandmarkRouter(landmarks, travelDisutility, travelTime, getRouter());
+		}
+	};
+
+	/**
+	 * Constructor: AMoDRouterFactory
+	 * ------------------------------
+	 * Builds the routing network, and the router of the calling thread.
+	 *
+	 * @param network
+	 * @param travelDisutility
+	 * @param travelTime
+	 * @param landmarks:
+	 *            the preprocessing of the leg routers, or null
+	 */
+	public AMoDRouterFactory(Network network, TravelDisutility travelDisutility, TravelTime travelTime,
+			AMoDLandmarks landmarks) {
+		this.travelDisutility = travelDisutility;
+		this.landmarks = landmarks;
+		this.travelTime = travelTime;
+		PreProcessDijkstra preProcessDijkstra = null;
+		this.routingNetwork = new ArrayRoutingNetworkFactory(preProcessDijkstra).createRoutingNetwork(network);
+		routers.get();
+	}
+
+	/**
+	 * Function getRouter
+	 * ------------------
+	 * @return the router of the calling thread.
+	 */
+	public MultiNodeDijkstra getRouter() {
+		return routers.get();
+	}
+
+	/**
+	 * Function getLegRouter
+	 * ---------------------
+	 * @return the router of the calling thread for paths between two nodes.
+	 */
+	public LeastCostPathCalculator getLegRouter() {
+		return legRouters.get();
+	}
+
+	/**
+	 * Function createRouter
+	 * ---------------------
+	 * Routers are created one at a time, because the first one sets up the
+	 * routing network.
+	 *
+	 * @return a new router on the shared routing network.
+	 */
+	public synchronized MultiNodeDijkstra createRouter() {
+		PreProcessDijkstra preProcessDijkstra = null;
+		return new FastMultiNodeDijkstra(routingNetwork, travelDisutility, travelTime, preProcessDijkstra,
+				fastRouterFactory, false);
+	}
+
+	public RoutingNetwork getRoutingNetwork() {
+		return routingNetwork;
+	}
+}
@@ -52,8 +52,7 @@ public class AMoDSchedulingProblem
     private final TravelTime travelTime;
     
     /** Station-Node data */
-	private double[][] stations_to_nodes;
-	private double[][] nodes_to_stations;
+	private final NetworkIndex networkIndex;
     
     /**
      * Constructor: AMoDSchedulingProblem
@@ -64,19 +63,17 @@ public class AMoDSchedulingProblem
      * @param optimContext
      * @param vrpFinder
      * @param router
-     * @param nodes_to_stations 
-     * @param stations_to_nodes 
+     * @param networkIndex 
      */
     public AMoDSchedulingProblem(TaxiOptimizerContext optimContext, BestDispatchFinder vrpFinder, 
-    		LeastCostPathCalculator router, double[][] stations_to_nodes, double[][] nodes_to_stations)
+    		LeastCostPathCalculator router, NetworkIndex networkIndex)
     {
         this.optimContext = optimContext;
         this.dispatchFinder = vrpFinder;
         this.router = router;
         this.timer = optimContext.timer;
         this.travelTime = optimContext.travelTime;
-        this.stations_to_nodes = stations_to_nodes;
-        this.nodes_to_stations = nodes_to_stations;
+        this.networkIndex = networkIndex;
     }
     
 	/**
@@ -437,12 +434,9 @@ public class AMoDSchedulingProblem
 		Schedule<TaxiTask> schedule = TaxiSchedules.asTaxiSchedule(vehicle.getSchedule());
         
         TaxiStayTask lastTask = (TaxiStayTask)Schedules.getLastTask(schedule);
-        int currVehNode = Integer.parseInt(lastTask.getLink().getFromNode().getId().toString());
-        Integer currVehStation = (int) nodes_to_stations[currVehNode - 1][0];
-        int startNode = Integer.parseInt(fromlink.getFromNode().getId().toString());
-        Integer startStation = (int) nodes_to_stations[startNode-1][0];
-        int endNode = Integer.parseInt(tolink.getToNode().getId().toString());
-        Integer endStation = (int) nodes_to_stations[endNode-1][0];
+        Integer currVehStation = networkIndex.stationOf(lastTask.getLink().getFromNode());
+        Integer startStation = networkIndex.stationOf(fromlink.getFromNode());
+        Integer endStation = networkIndex.stationOf(tolink.getToNode());
         Set<Path> possiblepaths = station_routes.get(new Pair<Integer, Integer>(startStation, endStation));
         
         switch (lastTask.getStatus()) {
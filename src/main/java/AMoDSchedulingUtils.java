@@ -1,10 +1,12 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
 
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Node;
@@ -42,14 +44,18 @@ public class AMoDSchedulingUtils {
 	 * This function takes in a set of possible routes and simply 
 	 * chooses a random element from the list. 
 	 * @param possiblerebroutes
+	 * @param random: the seeded generator of the caller
 	 * @return
 	 */
-	public static Object chooseRandomThing(Collection<?> possibleroutes) {
+	public static Object chooseRandomThing(Collection<?> possibleroutes, SplittableRandom random) {
 		if (possibleroutes == null) {
 			return null;
 		}
 		int size = possibleroutes.size();
-		int item = new Random().nextInt(size);
+		int item = random.nextInt(size);
+		if (possibleroutes instanceof List) {
+			return ((List<?>) possibleroutes).get(item);
+		}
 		int i = 0;
 		for (Object p : possibleroutes) {
 			if (i == item) 
@@ -107,6 +113,11 @@ public class AMoDSchedulingUtils {
 	 * This function takes in three lists of links and a start time and turns
 	 * it into a VrpPathWithTravelData so that it can be used
 	 * for the TaxiOccupiedDriveTask. 
+	 * 
+	 * The optimizer routes are cleaned up when they are loaded (see
+	 * AMoDPathStore) and the other parts come from Dijkstra, so each part is
+	 * a consistent path without loops. Only the loops where the parts meet
+	 * are left to fix here.
 	 * @param outLinks
 	 * @param inBetween
 	 * @param inLinks
@@ -119,28 +130,20 @@ public class AMoDSchedulingUtils {
 		double travelTime = 0;
 		
 		Link[] finalLinks = new Link[outLinks.size() + inBetween.size() + inLinks.size()];
-		Node[] finalnodes = new Node[finalLinks.length + 1];
 		int linkIdx = 0;
 		
-		linkIdx = addSetOfLinks(outLinks, finalLinks, linkIdx, finalnodes);
-		
-		linkIdx = addSetOfLinks(inBetween, finalLinks, linkIdx, finalnodes);
-		
-		linkIdx = addSetOfLinks(inLinks, finalLinks, linkIdx, finalnodes);
+		linkIdx = addSetOfLinks(outLinks, finalLinks, linkIdx);
 		
-		finalnodes[finalnodes.length - 1] = finalLinks[finalLinks.length - 1].getToNode();
+		linkIdx = addSetOfLinks(inBetween, finalLinks, linkIdx);
 		
-		ArrayList<Link> tempLinks = new ArrayList<Link>(Arrays.asList(finalLinks));
-		ArrayList<Node> tempNodes = new ArrayList<Node>(Arrays.asList(finalnodes));
+		linkIdx = addSetOfLinks(inLinks, finalLinks, linkIdx);
 		
-		finalLinks = fixLoopsInPath(tempLinks, tempNodes); 
+		finalLinks = fixLoopsInPath(finalLinks); 
 		
 		double[] linkTTs = new double[finalLinks.length];
 		
 		travelTime = createTTs(finalLinks, linkTTs);
 		
-		checkConsistencyOfPath(finalLinks);
-		
 		VrpPathWithTravelData finalPath = new VrpPathWithTravelDataImpl(time, travelTime, finalLinks, linkTTs);
 		return finalPath;
 	}
@@ -163,28 +166,6 @@ public class AMoDSchedulingUtils {
 		return new Path(nodelist, linklist, traveltime, 0);
 	}
 
-	/**
-	 * Function: checkConsistencyOfPath:
-	 * ---------------------------------
-	 * 
-	 * This function takes in a series of links and makes sure that they are a consistent
-	 * path. A consistent path has link i's toNode = link i+1's fromNode.
-	 * 
-	 * Mostly used for debugging.
-	 * @param finalLinks
-	 * @throws InconsistentPathException 
-	 */
-	private static void checkConsistencyOfPath(Link[] finalLinks) {
-		for (int i = 0; i < finalLinks.length - 1; i++) {
-			Link curr = finalLinks[i];
-			Link next = finalLinks[i+1];
-			if (!curr.getToNode().equals(next.getFromNode())) {
-				System.out.println("HOUSTON, WE HAVE A PROBLEM WITH THE LINKS.");
-			}
-		}
-		
-	}
-
 	/**
 	 * Function: createTTs
 	 * ------------------
@@ -210,56 +191,44 @@ public class AMoDSchedulingUtils {
 	/**
 	 * Function fixLoopsInPath
 	 * -----------------------
-	 * This function determines whether or not a path needs to be fixed.
-	 * A path needs to be fixed if it goes through the same node twice.
-	 * If it needs to be fixed, the path is passed to another function for fixing.
+	 * This function cuts the loops out of a path. A path has a loop if it
+	 * goes through the same node twice; the links in between are dropped.
+	 * The path is walked once, remembering how many links were kept when
+	 * each node was reached. The same link twice in a row is also dropped.
 	 * 
-	 * NB: Doesn't fix loops if the node is the first node of the path, as MATSim
-	 * requires that the first link be the same as the Taxi Request.
+	 * NB: Doesn't fix loops if the node is the first or the last node of the
+	 * path, as MATSim requires that the first and last links be the ones of
+	 * the Taxi Request.
 	 * 
-	 * @param tempLinks: list of links to be fixed.
-	 * @param tempNodes: list of nodes to be fixed.
+	 * @param links: the links of the path
 	 * @return the fixed path. 
 	 */
-	private static Link[] fixLoopsInPath(ArrayList<Link> tempLinks, ArrayList<Node> tempNodes) {
-		for (int i = 0; i < tempNodes.size(); i++) {
-			Node n = tempNodes.get(i);
-			int ind = tempNodes.indexOf(n);
-			if (ind != tempNodes.size() - 1 && ind != 0) {
-				List<Node> sub = tempNodes.subList(ind+1, tempNodes.size());
-				int ind2 = sub.indexOf(n);
-				if (ind2 != -1  && (ind2 + ind + 1) != tempNodes.size() - 1) { // TODO: figure out a better way to do this
-					ind2 += ind + 1;
-					fixLoop(tempLinks, tempNodes, ind, ind2);
+	private static Link[] fixLoopsInPath(Link[] links) {
+		if (links.length == 0) {
+			return links;
+		}
+		Link[] kept = new Link[links.length];
+		int numKept = 0;
+		Map<Node, Integer> reached = new HashMap<Node, Integer>(2 * links.length);
+		reached.put(links[0].getFromNode(), 0);
+		for (int i = 0; i < links.length; i++) {
+			if (numKept > 0 && kept[numKept - 1].equals(links[i])) {
+				continue;
+			}
+			kept[numKept++] = links[i];
+			Node n = links[i].getToNode();
+			Integer ind = reached.get(n);
+			if (ind == null) {
+				reached.put(n, numKept);
+			} else if (ind != 0 && i != links.length - 1) {
+				for (int j = ind; j < numKept; j++) {
+					reached.remove(kept[j].getToNode());
 				}
+				reached.put(n, ind);
+				numKept = ind;
 			}
 		}
-		
-		removeDuplicates(tempLinks);
-		Link[] finalLinks = new Link[tempLinks.size()];
-		tempLinks.toArray(finalLinks);
-		return finalLinks;
-	}
-
-	/**
-	 * Function fixLoop
-	 * ----------------
-	 * This function takes in a series of links, a series of nodes, and a start and end index.
-	 * It then goes through the links and takes out the necessary links so that after 
-	 * the function is done, the path does not contain that particular loop.
-	 * 
-	 * @param tempLinks
-	 * @param tempNodes
-	 * @param ind
-	 * @param ind2
-	 */
-	private static void fixLoop(ArrayList<Link> tempLinks, ArrayList<Node> tempNodes, int ind, int ind2) {
-		for (int i = ind2 - 1; i >= ind; i--) {
-			tempLinks.remove(i);
-			tempNodes.remove(i);
-		}
-		
-		removeDuplicates(tempLinks);
+		return Arrays.copyOf(kept, numKept);
 	}
 
 	/**
@@ -270,18 +239,13 @@ public class AMoDSchedulingUtils {
 	 * 
 	 * @param links: links to be added
 	 * @param finalLinks: list to which links are added
-	 * @param linkTTs: travelTime array of links
-	 * @param travelTime: total travelTime
 	 * @param linkIdx: the starting index to add elements
 	 * @return linkIdx: where to start the next iteration
 	 */
-	private static int addSetOfLinks(List<Link> links, Link[] finalLinks,
-			int linkIdx, Node[] finalNodes) {
+	private static int addSetOfLinks(List<Link> links, Link[] finalLinks, int linkIdx) {
 		
 		for (int i = 0; i < links.size(); i++) {
-			Link l = links.get(i);
-			finalLinks[linkIdx] = l;
-			finalNodes[linkIdx] = l.getFromNode();
+			finalLinks[linkIdx] = links.get(i);
 			linkIdx++;
 		}
 		return linkIdx;
@@ -294,12 +258,13 @@ public class AMoDSchedulingUtils {
 	 * and returns an array of how many vehicles are on each link. The ith entry of the array represents
 	 * the number of vehicles at time simTime that are on link i + 1. 
 	 * @param vehicles
-	 * @param numLinks
+	 * @param networkIndex
 	 * @param simTime
 	 * @return
 	 */
-	public static double[] calculateVehicleLocations(Collection<Vehicle> vehicles, int numLinks, double simTime) {
-		double[] result = new double[numLinks];
+	public static double[] calculateVehicleLocations(Collection<Vehicle> vehicles, NetworkIndex networkIndex,
+			double simTime) {
+		double[] result = new double[networkIndex.numLinks()];
 		for (Vehicle v : vehicles)  {
 			Schedule<TaxiTask> sched = TaxiSchedules.asTaxiSchedule(v.getSchedule());
 			if (sched.getStatus() == ScheduleStatus.STARTED) {
@@ -313,7 +278,8 @@ public class AMoDSchedulingUtils {
 						linkIdx++;
 					}
 					if (linkIdx != 0) {
-						result[Integer.parseInt(path.getLink(linkIdx-1).getId().toString())-1]++;
+						int link = networkIndex.linkIndex(path.getLink(linkIdx-1));
+						result[networkIndex.getLinkNumber(link)-1]++;
 					}	
 				}
 			}
@@ -322,14 +288,13 @@ public class AMoDSchedulingUtils {
 	}
 
 	public static double[] calculateNumberWaitingPassengers(Collection<TaxiRequest> unplannedRequests,
-			double[][] nodes_to_stations, double[][] stations_to_nodes) {
-		double[] result = new double[stations_to_nodes.length];
+			NetworkIndex networkIndex) {
+		double[] result = new double[networkIndex.numStations()];
 		
 		for (TaxiRequest req : unplannedRequests) {
 			Link fromlink = req.getFromLink();
 			Node start = fromlink.getFromNode();
-			int nodeId = Integer.parseInt(start.getId().toString());
-			int station = (int) nodes_to_stations[nodeId-1][0];
+			int station = networkIndex.stationOf(start);
 			result[station-1]++;
 		}
 		
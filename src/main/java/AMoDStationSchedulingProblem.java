@@ -3,7 +3,6 @@ import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
 
-import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.contrib.dvrp.data.Vehicle;
@@ -34,6 +33,9 @@ import org.matsim.core.router.util.TravelTime;
  * This class contains the functionality to dispatch cars and make sure that
  * they are going where they are supposed to be going. STATION-WISE
  * 
+ * The optimizer creates it once and calls it every time step, so nothing is
+ * allocated when there is nothing to schedule or rebalance.
+ * 
  * @author yhindy
  *
  */
@@ -46,9 +48,9 @@ public class AMoDStationSchedulingProblem {
 	/** The context of the simulation */
 	private final TaxiOptimizerContext optimContext;
 	/** The dispatcher to find the best vehicle */
-	private final BestDispatchFinder dispatchFinder;
-	/** The router to find routes in case cplex hasn't made one */
-	private final LeastCostPathCalculator router;
+	private final AMoDVehicleFinder dispatchFinder;
+	/** Gives the router to find routes in case cplex hasn't made one */
+	private final AMoDRouterFactory routerFactory;
 	/** Timer of the simulation */
 	private final MobsimTimer timer;
 	/** TravelTime calculator */
@@ -58,8 +60,18 @@ public class AMoDStationSchedulingProblem {
 
 
 	/** Station-Node data */
-	private double[][] nodes_to_stations;
-	private double[][] stations_to_nodes;
+	private final NetworkIndex networkIndex;
+	/** The state of the vehicles, updated with the schedules changed here */
+	private final AMoDVehicleIndex vehicleIndex;
+	/** Picks the routes of the optimizer */
+	private final SplittableRandom random;
+
+	/** The idle vehicles of the station being rebalanced */
+	private final List<Vehicle> idleScratch = new ArrayList<Vehicle>();
+	/** Holds the requests of a batch, reused from batch to batch */
+	private final List<TaxiRequest> batch = new ArrayList<TaxiRequest>();
+	/** Whether the last rebalancing drew a route it could not use */
+	private boolean rebalanceMissed = false;
 
 	/**
 	 * Constructor: AMoDSchedulingProblem --------------------------------- The
@@ -68,20 +80,23 @@ public class AMoDStationSchedulingProblem {
 	 * 
 	 * @param optimContext
 	 * @param vrpFinder
-	 * @param router
-	 * @param nodes_to_stations
-	 * @param stations_to_nodes
-	 * @param stations_to_nodes
+	 * @param routerFactory:
+	 *            gives the router of the calling thread
+	 * @param networkIndex
+	 * @param vehicleIndex
+	 * @param random
 	 */
-	public AMoDStationSchedulingProblem(TaxiOptimizerContext optimContext, BestDispatchFinder vrpFinder,
-			LeastCostPathCalculator router, double[][] nodes_to_stations, double[][] stations_to_nodes) {
+	public AMoDStationSchedulingProblem(TaxiOptimizerContext optimContext, AMoDVehicleFinder vrpFinder,
+			AMoDRouterFactory routerFactory, NetworkIndex networkIndex, AMoDVehicleIndex vehicleIndex,
+			SplittableRandom random) {
 		this.optimContext = optimContext;
 		this.dispatchFinder = vrpFinder;
-		this.router = router;
+		this.routerFactory = routerFactory;
 		this.timer = optimContext.timer;
 		this.travelTime = optimContext.travelTime;
-		this.nodes_to_stations = nodes_to_stations;
-		this.stations_to_nodes = stations_to_nodes;
+		this.networkIndex = networkIndex;
+		this.vehicleIndex = vehicleIndex;
+		this.random = random;
 		this.scheduler = (AMoDTaxiScheduler) optimContext.scheduler;
 	}
 
@@ -100,8 +115,11 @@ public class AMoDStationSchedulingProblem {
 	 * @throws FileNotFoundException
 	 */
 	public Set<TaxiRequest> scheduleUnplannedRequests(Queue<TaxiRequest> unplannedRequests,
-			Map<Integer, Map<Integer, Set<Path>>> station_routes)
+			AMoDRouteTable station_routes)
 			throws FileNotFoundException, UnsupportedEncodingException {
+		if (unplannedRequests.isEmpty()) {
+			return Collections.emptySet();
+		}
 		int totalcount = 0;
 		int usedcount = 0;
 		// PrintWriter writer = new PrintWriter("requests_stations1.txt",
@@ -124,7 +142,6 @@ public class AMoDStationSchedulingProblem {
 				usedcount += scheduleOneRequest(best.vehicle, req, best.path, best.path.getDepartureTime(), fromlink,
 						toLink, station_routes);
 
-				// TODO search only through available vehicles
 				// TODO what about k-nearstvehicle filtering?
 
 				// optimContext.scheduler.scheduleRequest(best.vehicle,
@@ -138,6 +155,38 @@ public class AMoDStationSchedulingProblem {
 		return impossibleReqs;
 	}
 
+	/**
+	 * Function scheduleUnplannedRequests
+	 * ----------------------------------
+	 * This function plans all the unplanned requests given to it at once:
+	 * the batch dispatcher matches them to vehicles, and then the trip of
+	 * each matched request is scheduled like for a single request.
+	 * 
+	 * @param unplannedRequests
+	 * @param station_routes
+	 * @param batchDispatcher
+	 * @return the requests that did not get a vehicle
+	 */
+	public Set<TaxiRequest> scheduleUnplannedRequests(Queue<TaxiRequest> unplannedRequests,
+			AMoDRouteTable station_routes, AMoDBatchDispatcher batchDispatcher) {
+		if (unplannedRequests.isEmpty()) {
+			return Collections.emptySet();
+		}
+		batch.clear();
+		while (!unplannedRequests.isEmpty()) {
+			batch.add(unplannedRequests.poll());
+		}
+		Set<TaxiRequest> impossibleReqs = new HashSet<TaxiRequest>(batch);
+		for (BestDispatchFinder.Dispatch<TaxiRequest> best : batchDispatcher.dispatch(batch)) {
+			TaxiRequest req = best.destination;
+			scheduleOneRequest(best.vehicle, req, best.path, best.path.getDepartureTime(), req.getFromLink(),
+					req.getToLink(), station_routes);
+			impossibleReqs.remove(req);
+		}
+		batch.clear();
+		return impossibleReqs;
+	}
+
 	/**
 	 * Function scheduleOneRequest ---------------------------- This function
 	 * takes in a vehicle, a request, and a set of routes and alters the
@@ -158,7 +207,7 @@ public class AMoDStationSchedulingProblem {
 	 *         route.
 	 */
 	private int scheduleOneRequest(Vehicle v, TaxiRequest req, VrpPathWithTravelData toPickup, double startTime,
-			Link fromlink, Link tolink, Map<Integer, Map<Integer, Set<Path>>> station_routes) {
+			Link fromlink, Link tolink, AMoDRouteTable station_routes) {
 		// Drive to first node in route outside of station with shortest path
 		// computed by Dijkstra
 		// Follow the MATLAB path until the next node is in the destination
@@ -171,33 +220,24 @@ public class AMoDStationSchedulingProblem {
 
 		Schedule<TaxiTask> schedule = TaxiSchedules.asTaxiSchedule(v.getSchedule());
 
-		int startNode = Integer.parseInt(fromlink.getToNode().getId().toString());
-		int startStation = (int) nodes_to_stations[startNode - 1][0];
-		int endNode = Integer.parseInt(tolink.getFromNode().getId().toString());
-		int endStation = (int) nodes_to_stations[endNode - 1][0];
-		Set<Path> possiblepaths;
-		Map<Integer, Set<Path>> outOfStart = null;
+		int startStation = networkIndex.stationOf(fromlink.getToNode());
+		int endStation = networkIndex.stationOf(tolink.getFromNode());
+		AMoDRouteSampler possiblepaths;
 		if (station_routes == null) {
 			possiblepaths = null;
 		} else {
-			outOfStart = station_routes.get(startStation);
-		}
-
-		if (outOfStart == null) {
-			possiblepaths = null;
-		} else {
-			possiblepaths = outOfStart.get(endStation);
+			possiblepaths = station_routes.getPassengerRoutes(startStation, endStation);
 		}
 
 		scheduler.scheduleFirstHalf(v, req, toPickup);
 		double t3 = scheduler.calcJourneyStartTime(schedule);
 		int count = 0;
-		Path temppath = (Path) AMoDSchedulingUtils.chooseRandomThing(possiblepaths);
+		AMoDStoredPath storedpath = possiblepaths == null ? null : possiblepaths.sample(random);
 		VrpPathWithTravelData p2;
-		if (temppath == null) {
-			p2 = VrpPaths.calcAndCreatePath(fromlink, tolink, t3, router, travelTime);
+		if (storedpath == null) {
+			p2 = VrpPaths.calcAndCreatePath(fromlink, tolink, t3, routerFactory.getLegRouter(), travelTime);
 		} else {
-			p2 = findPatchedPath(temppath, fromlink, tolink, startStation, endStation, t3);
+			p2 = findPatchedPath(storedpath.toPath(), fromlink, tolink, startStation, endStation, t3);
 			count++;
 
 		}
@@ -243,6 +283,7 @@ public class AMoDStationSchedulingProblem {
 			Integer endStation, double time) {
 
 		List<Node> nodes = temppath.nodes;
+		LeastCostPathCalculator router = routerFactory.getLegRouter();
 
 		Node firstOut = findFirstToNode(nodes, startStation);
 		Path outOfStation;
@@ -295,8 +336,7 @@ public class AMoDStationSchedulingProblem {
 	 */
 	private Node findFirstToNode(List<Node> path, int startStation) {
 		for (Node n : path) {
-			int nodenumber = Integer.parseInt(n.getId().toString());
-			if ((int) nodes_to_stations[nodenumber - 1][0] != startStation) {
+			if (networkIndex.stationOf(n) != startStation) {
 				return n;
 			}
 		}
@@ -314,8 +354,7 @@ public class AMoDStationSchedulingProblem {
 	private Node findLastNonStationNode(List<Node> path, Integer endStation) {
 		for (int i = path.size() - 1; i >= 0; i--) {
 			Node curr = path.get(i);
-			int currnumber = Integer.parseInt(curr.getId().toString());
-			if ((int) nodes_to_stations[currnumber - 1][0] != endStation) {
+			if (networkIndex.stationOf(curr) != endStation) {
 				return curr;
 			}
 		}
@@ -326,18 +365,29 @@ public class AMoDStationSchedulingProblem {
 	 * Function legacyRebalanceVehicles -------------------------------- This
 	 * function takes in a set of rebalancing origins/destinations and a
 	 * percentage to rebalance and then goes through all the idle vehicles and
-	 * rebalances whatever percentage is necessary using Dijkstra.
+	 * rebalances whatever percentage is necessary using Dijkstra. Only the
+	 * stations with trips left in the queue are looked at.
 	 * 
 	 * @param rebalance_queue
 	 * @param fraction_to_rebalance
 	 * @return number of free vehicles
 	 */
 	public int legacyRebalanceVehicles(List<List<Integer>> rebalance_queue, double fraction_to_rebalance) {
+		if (rebalance_queue == null) {
+			return 0;
+		}
 		int count = 0;
-		for (Vehicle veh : optimContext.taxiData.getVehicles().values()) {
-			if (optimContext.scheduler.isIdle(veh)) {
-				count += legacyRebalanceVehicle(veh, rebalance_queue, fraction_to_rebalance);
+		for (int station = 1; station <= rebalance_queue.size(); station++) {
+			if (rebalance_queue.get(station - 1).isEmpty()) {
+				continue;
+			}
+			idleScratch.addAll(vehicleIndex.getIdleVehicles(station));
+			for (Vehicle veh : idleScratch) {
+				if (vehicleIndex.isIdle(veh)) {
+					count += legacyRebalanceVehicle(veh, rebalance_queue, fraction_to_rebalance);
+				}
 			}
+			idleScratch.clear();
 		}
 		return count;
 	}
@@ -363,17 +413,15 @@ public class AMoDStationSchedulingProblem {
 		TaxiStayTask lasttask = (TaxiStayTask) curr.getCurrentTask();
 		Link lastlink = lasttask.getLink();
 		Node lastnode = lastlink.getToNode();
-		int lastnodenumber = Integer.parseInt(lastnode.getId().toString());
-		Integer laststation = (int) nodes_to_stations[lastnodenumber - 1][0];
+		Integer laststation = networkIndex.stationOf(lastnode);
 		Path chosen;
-		double chance = Math.random();
+		double chance = random.nextDouble();
 		if (!rebalance_queue.get(laststation - 1).isEmpty()) {
 			List<Integer> possibleDestStations = rebalance_queue.get(laststation - 1);
-			Integer destination = (Integer) AMoDSchedulingUtils.chooseRandomThing(possibleDestStations);
+			Integer destination = (Integer) AMoDSchedulingUtils.chooseRandomThing(possibleDestStations, random);
 			possibleDestStations.remove(destination); // spending the trip
-			String destNodeId = Integer.toString((int) stations_to_nodes[destination - 1][0]);
-			Node destNode = optimContext.network.getNodes().get(Id.createNodeId(destNodeId));
-			chosen = router.calcLeastCostPath(lastnode, destNode, timer.getTimeOfDay(), null, null);
+			Node destNode = networkIndex.stationNode(destination);
+			chosen = routerFactory.getLegRouter().calcLeastCostPath(lastnode, destNode, timer.getTimeOfDay(), null, null);
 		} else {
 			return 0;
 		}
@@ -392,22 +440,32 @@ public class AMoDStationSchedulingProblem {
 	 * Function rebalanceVehicles ------------------------------- This function
 	 * takes in a set of rebalancing routes and a percentage to rebalance and
 	 * then goes through all the idle vehicles and rebalances whatever
-	 * percentage of them is necessary.
+	 * percentage of them is necessary. Only the stations with unused routes
+	 * are looked at.
 	 * 
-	 * @param station_reb_routes
+	 * @param station_reb_routes:
+	 *            the rebalancing routes that have not been used yet
 	 * @param proportion
 	 * @return the number of free vehicles
 	 */
-	public int rebalanceVehicles(Map<Integer, List<Path>> station_reb_routes, double proportion) {
+	public int rebalanceVehicles(AMoDRebalanceCursor station_reb_routes, double proportion) {
+		rebalanceMissed = false;
 		if (station_reb_routes == null) {
 			return 0;
 		}
 		// System.out.println("Rebalancing...");
 		int count = 0;
-		for (Vehicle veh : optimContext.taxiData.getVehicles().values()) {
-			if (optimContext.scheduler.isIdle(veh)) {
-				count += rebalanceVehicle(veh, station_reb_routes, proportion);
+		for (int station = 0; station <= networkIndex.numStations(); station++) {
+			if (!station_reb_routes.hasUnusedRoutes(station)) {
+				continue;
+			}
+			idleScratch.addAll(vehicleIndex.getIdleVehicles(station));
+			for (Vehicle veh : idleScratch) {
+				if (vehicleIndex.isIdle(veh)) {
+					count += rebalanceVehicle(veh, station_reb_routes, proportion);
+				}
 			}
+			idleScratch.clear();
 		}
 		return count;
 	}
@@ -421,39 +479,44 @@ public class AMoDStationSchedulingProblem {
 	 * @param station_reb_routes
 	 * @param proportion
 	 */
-	private int rebalanceVehicle(Vehicle veh, Map<Integer, List<Path>> station_reb_routes, double proportion) {
+	private int rebalanceVehicle(Vehicle veh, AMoDRebalanceCursor station_reb_routes, double proportion) {
 		Schedule<TaxiTask> curr = TaxiSchedules.asTaxiSchedule(veh.getSchedule());
 		TaxiStayTask lasttask = (TaxiStayTask) curr.getCurrentTask();
 		Link lastlink = lasttask.getLink();
 		Node lastnode = lastlink.getToNode();
-		int lastnodenumber = Integer.parseInt(lastnode.getId().toString());
-		Integer laststation = (int) nodes_to_stations[lastnodenumber - 1][0];
+		Integer laststation = networkIndex.stationOf(lastnode);
 		Path chosen;
-		if (station_reb_routes.get(laststation) != null) {
-			List<Path> possiblerebroutes = station_reb_routes.get(laststation);
-			if (possiblerebroutes.size() == 0) {
-				station_reb_routes.remove(laststation);
-				return 0; 
-			}
-			Path chosen2 = (Path) AMoDSchedulingUtils.chooseRandomThing(possiblerebroutes);
-			if ( chosen2.links.size() == 1 || chosen2.nodes.size() == 1) {
-				return 0;
-			}
-			
-			chosen = patchRebalanceTrip(lastnode, chosen2);
-			possiblerebroutes.remove(chosen2);
+		AMoDStoredPath storedroute = station_reb_routes.chooseRoute(laststation);
+		if (storedroute != null) {
+			chosen = patchRebalanceTrip(lastnode, storedroute.toPath());
+			station_reb_routes.consume(laststation, storedroute);
 		} else {
 			return 0;
 		}
 
 		if (chosen == null) {
+			rebalanceMissed = true;
 			return 0;
 		}
-		List<Link> links = chosen.links;
-		List<Node> nodes = chosen.nodes;
-		AMoDSchedulingUtils.removeDuplicates(links);
-		AMoDSchedulingUtils.removeDuplicates(nodes);
-		return scheduleRebalanceTrip(curr, chosen);
+		// the route was cleaned up when it was loaded
+		int scheduled = scheduleRebalanceTrip(curr, chosen);
+		if (scheduled == 0) {
+			rebalanceMissed = true;
+		}
+		return scheduled;
+	}
+
+	/**
+	 * Function rebalanceMissed
+	 * ------------------------
+	 * The routes are drawn at random, so an idle vehicle that drew a route it
+	 * could not use may get a usable one in the next time step.
+	 * 
+	 * @return whether the last call of rebalanceVehicles left an idle vehicle
+	 *         behind that drew a route.
+	 */
+	public boolean rebalanceMissed() {
+		return rebalanceMissed;
 	}
 
 	/**
@@ -467,7 +530,7 @@ public class AMoDStationSchedulingProblem {
 	 */
 	private Path patchRebalanceTrip(Node lastnode, Path chosen) {
 		Node firstNode = chosen.nodes.get(0);
-		Path patch = router.calcLeastCostPath(lastnode, firstNode, timer.getTimeOfDay(), null, null);
+		Path patch = routerFactory.getLegRouter().calcLeastCostPath(lastnode, firstNode, timer.getTimeOfDay(), null, null);
 		List<Link> patchlinks = patch.links;
 		List<Node> patchnodes = patch.nodes;
 		List<Link> chosenlinks = chosen.links;
@@ -549,6 +612,7 @@ public class AMoDStationSchedulingProblem {
 		double arrivalTime = path.getArrivalTime();
 		double tEnd = Math.max(arrivalTime, curr.getVehicle().getT1());
 		curr.addTask(new TaxiStayTask(arrivalTime, tEnd, tolink));
+		vehicleIndex.update(curr.getVehicle());
 		return 1;
 	}
 
@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.LeastCostPathCalculator.Path;
+
+/**
+ * Class: AMoDStoredPath
+ *
+ * This class holds a route of the optimizer as the indices of its links in
+ * the NetworkIndex, with the free-speed travel time up to each link worked
+ * out once. Routes are interned by the AMoDPathStore, so two routes with
+ * the same links are the same object, and a MATSim Path is only built when
+ * a vehicle is actually sent along the route.
+ */
+public class AMoDStoredPath {
+
+	private final NetworkIndex networkIndex;
+	private final int[] links;
+	/** cumulativeTime[i] is the travel time of the first i links */
+	private final double[] cumulativeTime;
+	private final int hash;
+
+	/** The newest route table that uses this path */
+	volatile long lastUsed;
+
+	AMoDStoredPath(NetworkIndex networkIndex, int[] links, double[] linkTime) {
+		this.networkIndex = networkIndex;
+		this.links = links;
+		this.cumulativeTime = new double[links.length + 1];
+		for (int i = 0; i < links.length; i++) {
+			cumulativeTime[i + 1] = cumulativeTime[i] + linkTime[links[i]];
+		}
+		this.hash = Arrays.hashCode(links);
+	}
+
+	/** @return the number of links of the path */
+	public int numLinks() {
+		return links.length;
+	}
+
+	/** @return the index of link i of the path */
+	public int link(int i) {
+		return links[i];
+	}
+
+	/** @return the free-speed travel time of the whole path */
+	public double getTravelTime() {
+		return cumulativeTime[links.length];
+	}
+
+	/**
+	 * Function getTravelTime
+	 * ----------------------
+	 * @param from
+	 * @param to
+	 * @return the free-speed travel time of links from (inclusive) to to
+	 *         (exclusive) of the path.
+	 */
+	public double getTravelTime(int from, int to) {
+		return cumulativeTime[to] - cumulativeTime[from];
+	}
+
+	/**
+	 * Function toPath
+	 * ---------------
+	 * Builds a MATSim Path of this route. The Path is new every time, so the
+	 * caller may change it.
+	 *
+	 * @return the path
+	 */
+	public Path toPath() {
+		List<Node> nodelist = new ArrayList<Node>(links.length + 1);
+		List<Link> linklist = new ArrayList<Link>(links.length);
+		if (links.length > 0) {
+			nodelist.add(networkIndex.getNode(networkIndex.getLinkFrom(links[0])));
+		}
+		for (int link : links) {
+			linklist.add(networkIndex.getLink(link));
+			nodelist.add(networkIndex.getNode(networkIndex.getLinkTo(link)));
+		}
+		return new Path(nodelist, linklist, getTravelTime(), 0);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof AMoDStoredPath)) {
+			return false;
+		}
+		AMoDStoredPath other = (AMoDStoredPath) o;
+		return hash == other.hash && Arrays.equals(links, other.links);
+	}
+}
@@ -1,15 +1,18 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
-import org.matsim.api.core.v01.network.Network;
-import org.matsim.api.core.v01.network.Node;
 import org.matsim.contrib.dvrp.data.Requests;
 import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.dvrp.schedule.DriveTask;
 import org.matsim.contrib.dvrp.schedule.Schedule;
 import org.matsim.contrib.dvrp.schedule.Schedules;
 import org.matsim.contrib.dvrp.schedule.Schedule.ScheduleStatus;
@@ -19,24 +22,15 @@ import org.matsim.contrib.taxi.optimizer.*;
 import org.matsim.contrib.taxi.schedule.TaxiSchedules;
 import org.matsim.contrib.taxi.schedule.TaxiStayTask;
 import org.matsim.contrib.taxi.schedule.TaxiTask;
+import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeCleanupEvent;
 import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
-import org.matsim.core.router.ArrayFastRouterDelegateFactory;
-import org.matsim.core.router.FastMultiNodeDijkstra;
-import org.matsim.core.router.FastRouterDelegateFactory;
-import org.matsim.core.router.util.ArrayRoutingNetworkFactory;
+import org.matsim.core.mobsim.framework.listeners.MobsimBeforeCleanupListener;
 import org.matsim.core.router.util.LeastCostPathCalculator;
-import org.matsim.core.router.util.PreProcessDijkstra;
-import org.matsim.core.router.util.RoutingNetwork;
 import org.matsim.core.router.util.LeastCostPathCalculator.Path;
 import matlabcontrol.MatlabConnectionException;
 import matlabcontrol.MatlabInvocationException;
-import matlabcontrol.MatlabProxy;
 
-import com.jmatio.io.MatFileReader;
-import com.jmatio.io.MatFileWriter;
-import com.jmatio.types.MLArray;
-import com.jmatio.types.MLCell;
-import com.jmatio.types.MLDouble;
 
 /**
  * Class: AMoDTaxiOptimizer.java
@@ -48,7 +42,7 @@ import com.jmatio.types.MLDouble;
  * @author yhindy
  */
 
-public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
+public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer implements MobsimBeforeCleanupListener {
 
 	/*
 	 * ######################## ## Instance variables ##
@@ -68,12 +62,19 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 
 	/**
 	 * These are used to hold route data station-wise\ They map a pair of
-	 * integers (start and end stations) to paths that connect them.
+	 * integers (start and end stations) to paths that connect them, and a
+	 * station to the rebalancing paths out of it. The tables are immutable
+	 * and swapped whole; the rebalancing routes used so far are tracked by
+	 * station_reb_routes, which starts over with every new table.
 	 */
-	private Map<Integer, Map<Integer, Set<Path>>> station_routes = new HashMap<Integer, Map<Integer, Set<Path>>>();
-	private Map<Integer, List<Path>> station_reb_routes = new HashMap<Integer, List<Path>>();
-	private Map<Integer, Map<Integer, Set<Path>>> new_station_routes;
-	private Map<Integer, List<Path>> new_station_reb_routes;
+	private final AtomicReference<AMoDRouteTable> station_routes = new AtomicReference<AMoDRouteTable>();
+	private final AtomicReference<AMoDRouteTable> new_station_routes = new AtomicReference<AMoDRouteTable>();
+	private AMoDRebalanceCursor station_reb_routes;
+	/**
+	 * Picks the routes of the optimizer, seeded from the MATSim random seed
+	 * so that runs can be repeated
+	 */
+	private final SplittableRandom random = new SplittableRandom(MatsimRandom.getLocalInstance().nextLong());
 
 	/**
 	 * This set holds requests that couldn't be made because there wasn't a car
@@ -81,12 +82,26 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 	 */
 	private Set<TaxiRequest> rolloverRequests;
 
+	/** Dense indices of the nodes and links of the network */
+	private final NetworkIndex networkIndex;
+	/** Decodes the node-wise routes, in parallel if decoderParallelism is set */
+	private final AMoDPathDecoder pathDecoder;
+	/** Keeps the station-wise routes of the last few epochs, interned */
+	private final AMoDPathStore pathStore;
+
 	/** These are used by the optimizer to find routes and cars */
-	private final BestDispatchFinder dispatchFinder;
-	private LeastCostPathCalculator router;
-	private MatlabProxy proxy;
-	double[][] stations_to_nodes;
-	double[][] nodes_to_stations;
+	private final AMoDVehicleFinder dispatchFinder;
+	/** Schedule and rebalance the vehicles, station-wise or node-wise */
+	private final AMoDStationSchedulingProblem stationProblem;
+	private final AMoDNodesSchedulingProblem nodesProblem;
+	/** Where, when and from which station each vehicle can next be dispatched */
+	private final AMoDVehicleIndex vehicleIndex;
+	/** Gives the routers, which all share one routing network */
+	private final AMoDRouterFactory routerFactory;
+	/** Matches the waiting requests all at once (null to match them one by one) */
+	private AMoDBatchDispatcher batchDispatcher;
+	private int dispatchBatchWindow;
+	private AMoDFlowOptimizer flowOptimizer;
 
 	/** These are set by the optimizer group of the config-group. */
 	private int timeHorizon;
@@ -98,16 +113,35 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 	private String optimizerDataFile;
 	private double tripThreshold;
 	private boolean vehicleDiversion = true;
-	private String stationMap;
 	private boolean legacyRebalance;
 	private boolean doUnscheduleAwaitingRequests;
 	private int reschedulePeriod; // how long to wait before putting waiting
 									// customers back into the queue
 	private boolean amodDispatch;
 
+	/**
+	 * Runs the optimizer in the background if asyncOptimizer is set, or
+	 * within optimizerTimeBudget if that is set
+	 */
+	private AMoDOptimizationExecutor optimizationExecutor;
+	private boolean asyncOptimizer;
+	private double optimizerTimeBudget;
+
+	/** Computes the legacy rebalancing when the optimizer runs out of time */
+	private AMoDJavaFlowOptimizer fallbackOptimizer;
+	private boolean fallbackRebalance = false;
+	private int fallbackCount = 0;
+
 	/** Flag to use station-wise routing */
 	private boolean use_stations = true;
 
+	/**
+	 * Whether the rebalancing has to run in this time step: set when a
+	 * vehicle became idle or the rebalancing routes changed, and cleared once
+	 * the idle vehicles got what they could.
+	 */
+	private boolean rebalancePending = true;
+
 	double fraction_to_rebalance;
 
 	private int simTime;
@@ -126,16 +160,24 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 	 *            the context of the simulation
 	 * @param params:
 	 *            the parameters necessary for AMoD
+	 * @param networkIndex:
+	 *            the network indexed with the station map
+	 * @param routerFactory:
+	 *            gives the routers on the routing network of the simulation
 	 * @throws MatlabConnectionException:
 	 *             this occurs if the connection to MATLAB cannot be
 	 *             established.
 	 * @throws IOException
 	 * @throws FileNotFoundException
 	 */
-	public AMoDTaxiOptimizer(TaxiOptimizerContext optimContext, AMoDTaxiOptimizerParams params)
+	public AMoDTaxiOptimizer(TaxiOptimizerContext optimContext, AMoDTaxiOptimizerParams params,
+			NetworkIndex networkIndex, AMoDRouterFactory routerFactory)
 			throws MatlabConnectionException, FileNotFoundException, IOException {
 		super(optimContext, params, new PriorityQueue<TaxiRequest>(100, Requests.T0_COMPARATOR), true);
 
+		this.networkIndex = networkIndex;
+		this.routerFactory = routerFactory;
+
 		/* Setting instance variables from parameters of XML file */
 		optimizerDelay = params.optimizerDelay;
 		rebWeight = params.rebWeight;
@@ -143,63 +185,84 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 		timeHorizon = params.timeHorizon;
 		optimizerDataFile = params.optimizerDataFile;
 		tripThreshold = params.tripThreshold;
-		stationMap = params.stationMap;
 		legacyRebalance = params.legacyRebalance;
 		reschedulePeriod = params.reschedulePeriod;
 		amodDispatch = params.amodDispatch;
+		asyncOptimizer = params.asyncOptimizer;
+		optimizerTimeBudget = params.optimizerTimeBudget;
+		if (params.optimizerArchiveMode.equals("replay")) {
+			// the replayed epochs already say where the recorded run fell back
+			optimizerTimeBudget = 0;
+		}
+		if (asyncOptimizer || optimizerTimeBudget > 0) {
+			optimizationExecutor = new AMoDOptimizationExecutor(optimizerDelay);
+		}
 		rolloverRequests = new HashSet<TaxiRequest>();
 
-		double[][] linkMap = new double[2][optimContext.network.getLinks().values().size()];
-
-		writelinkMap(linkMap, optimContext.network.getLinks().values());
-
-		if (use_stations) {
-			station_routes = new HashMap<Integer, Map<Integer, Set<Path>>>();
-			station_reb_routes = new HashMap<Integer, List<Path>>();
-		} else {
+		if (!use_stations) {
 			routes = new HashMap<Link, Set<Path>>();
 			reb_routes = new HashMap<Link, Set<Path>>();
 		}
 
+		vehicleIndex = new AMoDVehicleIndex(optimContext, networkIndex);
+		((AMoDTaxiScheduler) optimContext.scheduler).setVehicleIndex(vehicleIndex);
+
 		/* Creating an object to track performance of the simulation */
-		stats = new AMoDPerformance(optimContext);
+		stats = new AMoDPerformance(optimContext, vehicleIndex);
 
-		initMatlab();
+		pathDecoder = new AMoDPathDecoder(networkIndex, params.decoderParallelism);
+		pathStore = new AMoDPathStore(networkIndex);
 
-		if (amodDispatch) {
-			dispatchFinder = new AMoDDispatchFinder(optimContext, params.neighbourhoodSize, stations_to_nodes,
-					nodes_to_stations);
+		if (params.optimizerArchiveMode.equals("replay")) {
+			flowOptimizer = new AMoDReplayFlowOptimizer(params.optimizerArchiveFile);
+		} else if (params.optimizerBackend.equals("java")) {
+			flowOptimizer = new AMoDJavaFlowOptimizer(networkIndex, tripThreshold, legacyRebalance, random.split());
 		} else {
-			dispatchFinder = new BestDispatchFinder(optimContext, params.neighbourhoodSize);
+			flowOptimizer = new AMoDMatlabFlowOptimizer(params, buildLinkMap(optimContext.network.getLinks().values()));
+		}
+		if (params.optimizerArchiveMode.equals("record")) {
+			flowOptimizer = new AMoDRecordingFlowOptimizer(flowOptimizer, params.optimizerArchiveFile);
 		}
 
-		PreProcessDijkstra preProcessDijkstra = null;
-		FastRouterDelegateFactory fastRouterFactory = new ArrayFastRouterDelegateFactory();
+		if (amodDispatch) {
+			dispatchFinder = new AMoDDispatchFinder(optimContext, params, networkIndex, vehicleIndex);
+		} else {
+			final BestDispatchFinder bestDispatchFinder = new BestDispatchFinder(optimContext, params.neighbourhoodSize);
+			dispatchFinder = new AMoDVehicleFinder() {
+				@Override
+				public BestDispatchFinder.Dispatch<TaxiRequest> findBestVehicleForRequest(TaxiRequest req,
+						Iterable<? extends Vehicle> vehicles) {
+					return bestDispatchFinder.findBestVehicleForRequest(req, vehicles);
+				}
+			};
+		}
 
-		/*
-		 * Building a router for the case that a path cannot be found between
-		 * two points by the MATLAB optimizer
-		 */
-		RoutingNetwork routingNetwork = new ArrayRoutingNetworkFactory(preProcessDijkstra)
-				.createRoutingNetwork(optimContext.network);
-		router = new FastMultiNodeDijkstra(routingNetwork, optimContext.travelDisutility, optimContext.travelTime,
-				preProcessDijkstra, fastRouterFactory, false);
+		dispatchBatchWindow = params.dispatchBatchWindow;
+		if (dispatchBatchWindow > 0 && use_stations) {
+			batchDispatcher = new AMoDBatchDispatcher(optimContext, networkIndex, vehicleIndex, routerFactory,
+					params);
+		}
 
+		if (use_stations) {
+			stationProblem = new AMoDStationSchedulingProblem(optimContext, dispatchFinder, routerFactory,
+					networkIndex, vehicleIndex, random);
+			nodesProblem = null;
+		} else {
+			stationProblem = null;
+			nodesProblem = new AMoDNodesSchedulingProblem(optimContext, dispatchFinder, routerFactory,
+					vehicleIndex, random);
+		}
 	}
 
-	private void writelinkMap(double[][] linkMap, Collection<? extends Link> values) throws IOException {
+	private double[][] buildLinkMap(Collection<? extends Link> values) {
+		double[][] linkMap = new double[2][values.size()];
 		int i = 0;
 		for (Link l : values) {
 			linkMap[0][i] = Integer.parseInt(l.getFromNode().getId().toString());
 			linkMap[1][i] = Integer.parseInt(l.getToNode().getId().toString());
 			i++;
 		}
-
-		ArrayList<MLArray> list = new ArrayList<MLArray>();
-		MLDouble matlinkMap = new MLDouble("linkMap", linkMap);
-		list.add(matlinkMap);
-
-		new MatFileWriter("MATLAB_utils/linkMap.mat", list);
+		return linkMap;
 	}
 
 	/**
@@ -220,99 +283,211 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 	 */
 	public double callCPLEXOptimizer(double startTime)
 			throws FileNotFoundException, IOException, MatlabConnectionException, MatlabInvocationException {
-		// Call MATLAB script to generate trips
-
-		System.out.println("Starting optmizer... this could take a while");
+		AMoDOptimizerInput input = snapshotOptimizerInput(startTime);
+		AMoDOptimizerOutput output;
+		if (optimizerTimeBudget > 0) {
+			output = runOptimizerWithinBudget(input);
+		} else {
+			output = runOptimizer(input);
+		}
+		publishOptimizerOutput(output);
+		return output.fractionToRebalance();
+		// Modified below by Federico. We want to always rebalance. How bad
+		// could it be? remember to change back.
+		// return 1;
+	}
 
+	/**
+	 * Function snapshotOptimizerInput -------------------------------------
+	 * This function collects the station-level state of the simulation that
+	 * the optimizer needs. It has to run on the simulation thread, since it
+	 * reads the vehicle schedules.
+	 * 
+	 * @param startTime
+	 * @return the snapshot of the simulation
+	 */
+	private AMoDOptimizerInput snapshotOptimizerInput(double startTime) {
 		Collection<Vehicle> vehicles = optimContext.taxiData.getVehicles().values();
-		double[] totalvehicles = new double[] { vehicles.size() };
 
 		double[] distribution = calculateVehicleDistribution(vehicles);
-		double[] totalpassengers = new double[] { stats.numberOfPassengers() };
-		int numLinks = optimContext.network.getLinks().values().size();
-		double[] vehiclelocations = AMoDSchedulingUtils.calculateVehicleLocations(vehicles, numLinks, startTime);
+		double[] vehiclelocations = AMoDSchedulingUtils.calculateVehicleLocations(vehicles, networkIndex, startTime);
 		double[] waitingpassengers = AMoDSchedulingUtils.calculateNumberWaitingPassengers(rolloverRequests,
-				nodes_to_stations, stations_to_nodes);
-
-		MLDouble matdistribution = new MLDouble("vehdistribution", distribution, distribution.length);
-		MLDouble mattotalvehicles = new MLDouble("totalvehicles", totalvehicles, 1);
-		MLDouble mattotalpassengers = new MLDouble("totalpassengers", totalpassengers, 1);
-		MLDouble matlocations = new MLDouble("vehlocations", vehiclelocations, vehiclelocations.length);
-		MLDouble matwaitingpass = new MLDouble("waitingpassengers", waitingpassengers, waitingpassengers.length);
-
-		ArrayList<MLArray> list = new ArrayList<MLArray>();
-		list.add(matdistribution);
-		list.add(mattotalvehicles);
-		list.add(mattotalpassengers);
-		list.add(matlocations);
-		list.add(matwaitingpass);
-
-		new MatFileWriter("MATLAB_utils/vehicledata.mat", list);
-
-		proxy.eval("cd('~/SVN/code/AMoD_congestion/AMoD_taxi/MATLAB_utils')");
-		String timeHorizonAsStr = Integer.toString(timeHorizon);
-		String optimstartTime = Double.toString(startTime);
-		String commandToRun = "runOptimization(" + optimstartTime + "," + timeHorizonAsStr + "," + rebWeight + ","
-				+ tripThreshold + "," + (legacyRebalance ? 1 : 0) + ",'" + optimizerDataFile + "')";
-		String displayCommand = "disp('runOptimization(" + optimstartTime + "," + timeHorizonAsStr + "," + rebWeight
-				+ "," + tripThreshold + "," + (legacyRebalance ? 1 : 0) + "," + optimizerDataFile + ")')";
-		proxy.eval(displayCommand);
-		proxy.eval(commandToRun);
-
-		double required_vehicles;
-		if (!legacyRebalance) {
-			MatFileReader matfilereader = new MatFileReader("src/main/resources/optimizerpaths.mat");
-			MLCell passpaths = (MLCell) matfilereader.getMLArray("passpaths");
-			MLCell rebpaths = (MLCell) matfilereader.getMLArray("rebpaths");
-			MLDouble numvehiclesarr = (MLDouble) matfilereader.getMLArray("numvehicles");
-			double[][] numvehiclesarrjava = numvehiclesarr.getArray();
-			required_vehicles = numvehiclesarrjava[0][0];
+				networkIndex);
 
-			if (use_stations) {
-				new_station_routes = new HashMap<Integer, Map<Integer, Set<Path>>>(); // used
-																						// for
-																						// station-wise
-																						// routing
-				new_station_reb_routes = new HashMap<Integer, List<Path>>();
-				decomposePassPathsStations(new_station_routes, passpaths);
-				decomposeRebPathsStations(new_station_reb_routes, rebpaths);
+		return new AMoDOptimizerInput(startTime, distribution, vehiclelocations, waitingpassengers, vehicles.size(),
+				stats.numberOfPassengers(), stats.numberIdle());
+	}
 
+	/**
+	 * Function runOptimizer ------------------------------------- This
+	 * function hands a snapshot of the simulation to the optimizer backend and
+	 * decodes the routes that come back. It does not touch the state of the
+	 * simulation, so it can run off the simulation thread.
+	 * 
+	 * @param input
+	 * @return the decoded routes
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @throws MatlabConnectionException
+	 * @throws MatlabInvocationException
+	 */
+	private AMoDOptimizerOutput runOptimizer(AMoDOptimizerInput input)
+			throws FileNotFoundException, IOException, MatlabConnectionException, MatlabInvocationException {
+		AMoDOptimizerPaths paths = flowOptimizer.optimize(input);
+		if (Thread.currentThread().isInterrupted()) {
+			// the solve ran over its time budget and was cancelled
+			throw new InterruptedIOException("Optimizer cancelled at time " + input.startTime);
+		}
+		if (paths.fallback) {
+			// a replayed epoch where the recorded optimizer ran out of time
+			return fallbackOutput(input, paths);
+		}
+
+		AMoDOptimizerOutput output = new AMoDOptimizerOutput(input);
+		output.required_vehicles = paths.numvehicles;
+		if (!legacyRebalance) {
+			if (use_stations) {
+				// decoded lazily, as the station pairs are used
+				output.station_routes = new AMoDRouteTable(pathStore, paths.passpaths, paths.rebpaths);
 			} else {
-				new_routes = new HashMap<Link, Set<Path>>();
-				new_reb_routes = new HashMap<Link, Set<Path>>();
+				output.routes = new HashMap<Link, Set<Path>>();
+				output.reb_routes = new HashMap<Link, Set<Path>>();
 
-				decomposePassPaths(new_routes, passpaths);
-				decomposePassPaths(new_reb_routes, rebpaths);
+				decomposePassPaths(output.routes, paths.passpaths);
+				decomposePassPaths(output.reb_routes, paths.rebpaths);
 			}
 		} else {
-			MatFileReader matfilereader = new MatFileReader("src/main/resources/optimizerpairs.mat");
-			MLCell matRebQueue = (MLCell) matfilereader.getMLArray("rebalanceQueue");
-			MLDouble numvehiclesarr = (MLDouble) matfilereader.getMLArray("numvehicles");
-			double[][] numvehiclesarrjava = numvehiclesarr.getArray();
-			required_vehicles = numvehiclesarrjava[0][0];
+			output.rebalance_queue = paths.rebalanceQueue;
+		}
+
+		return output;
+	}
 
-			rebalance_queue = makeRebQueue(matRebQueue);
+	/**
+	 * Function runOptimizerWithinBudget -------------------------------------
+	 * This function runs the optimizer but waits for it at most
+	 * optimizerTimeBudget seconds. If it takes longer (or an earlier solve
+	 * that ran over is still going), the epoch falls back to legacy
+	 * rebalancing between the station imbalances computed in Java, so the
+	 * simulation does not stall.
+	 * 
+	 * @param input
+	 * @return the decoded routes, or the fallback rebalancing
+	 * @throws IOException
+	 * @throws MatlabConnectionException
+	 * @throws MatlabInvocationException
+	 */
+	private AMoDOptimizerOutput runOptimizerWithinBudget(final AMoDOptimizerInput input)
+			throws IOException, MatlabConnectionException, MatlabInvocationException {
+		AMoDOptimizerOutput output;
+		try {
+			output = optimizationExecutor.solveWithin(input.startTime, new Callable<AMoDOptimizerOutput>() {
+				@Override
+				public AMoDOptimizerOutput call() throws Exception {
+					return runOptimizer(input);
+				}
+			}, (long) (optimizerTimeBudget * 1000));
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof MatlabConnectionException) {
+				throw (MatlabConnectionException) cause;
+			} else if (cause instanceof MatlabInvocationException) {
+				throw (MatlabInvocationException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		if (output != null) {
+			return output;
+		}
 
+		fallbackCount++;
+		System.out.println("Optimizer did not finish within " + optimizerTimeBudget + " s, using fallback rebalancing at time "
+				+ input.startTime + " (" + fallbackCount + " fallbacks so far)");
+		if (fallbackOptimizer == null) {
+			fallbackOptimizer = new AMoDJavaFlowOptimizer(networkIndex, tripThreshold, true, random.split());
 		}
+		AMoDOptimizerPaths paths = fallbackOptimizer.optimize(input);
+		if (flowOptimizer instanceof AMoDRecordingFlowOptimizer) {
+			((AMoDRecordingFlowOptimizer) flowOptimizer).recordFallback(input, paths);
+		}
+		return fallbackOutput(input, paths);
+	}
 
-		return required_vehicles / stats.numberIdle();
-		// Modified below by Federico. We want to always rebalance. How bad
-		// could it be? remember to change back.
-		// return 1;
+	private AMoDOptimizerOutput fallbackOutput(AMoDOptimizerInput input, AMoDOptimizerPaths paths) {
+		AMoDOptimizerOutput output = new AMoDOptimizerOutput(input);
+		output.fallback = true;
+		output.required_vehicles = paths.numvehicles;
+		output.rebalance_queue = paths.rebalanceQueue;
+		return output;
 	}
 
-	private List<List<Integer>> makeRebQueue(MLCell matRebQueue) {
-		List<List<Integer>> result = new ArrayList<List<Integer>>();
-		List<MLArray> stationPairs = matRebQueue.cells();
-		for (int i = 0; i < stationPairs.size(); i++) {
-			result.add(new ArrayList<Integer>());
-			MLDouble curr = (MLDouble) stationPairs.get(i);
-			double[][] arr = curr.getArray();
-			for (int j = 0; j < arr.length; j++) {
-				result.get(i).add((int) arr[j][0]);
+	/**
+	 * Function publishOptimizerOutput -------------------------------------
+	 * This function hands the routes computed by the optimizer to the
+	 * simulation. They are kept in the "new" routes objects until
+	 * optimizerDelay has passed. A fallback output only replaces the
+	 * rebalancing, and does so right away.
+	 * 
+	 * @param output
+	 */
+	private void publishOptimizerOutput(AMoDOptimizerOutput output) {
+		fallbackRebalance = output.fallback && !legacyRebalance;
+		rebalancePending = true;
+		if (!legacyRebalance && !output.fallback) {
+			if (use_stations) {
+				new_station_routes.set(output.station_routes);
+			} else {
+				new_routes = output.routes;
+				new_reb_routes = output.reb_routes;
 			}
+		} else {
+			rebalance_queue = output.rebalance_queue;
+		}
+	}
+
+	/**
+	 * Function submitOptimizer -------------------------------------
+	 * This function takes a snapshot of the simulation and starts the
+	 * optimizer on it in the background. If the previous solve is still
+	 * running, the epoch is skipped and the old routes stay in use.
+	 * 
+	 * @param startTime
+	 */
+	private void submitOptimizer(double startTime) {
+		final AMoDOptimizerInput input = snapshotOptimizerInput(startTime);
+		boolean started = optimizationExecutor.submit(startTime, new Callable<AMoDOptimizerOutput>() {
+			@Override
+			public AMoDOptimizerOutput call() throws Exception {
+				return runOptimizer(input);
+			}
+		});
+		if (!started) {
+			System.out.println("Optimizer is still busy, keeping the previous routes at time " + startTime);
+		}
+	}
+
+	/**
+	 * Function collectOptimizerOutput -------------------------------------
+	 * This function checks whether a background solve has finished and
+	 * optimizerDelay has passed since it was started. If so, the new routes
+	 * are published and used from now on.
+	 * 
+	 * @param simTime
+	 */
+	private void collectOptimizerOutput(double simTime) {
+		try {
+			AMoDOptimizerOutput output = optimizationExecutor.poll(simTime);
+			if (output != null) {
+				publishOptimizerOutput(output);
+				fraction_to_rebalance = output.fractionToRebalance();
+				System.out.println("Using optimizer routes computed at time " + output.input.startTime);
+			}
+		} catch (ExecutionException e1) {
+			System.out.println("Oops, something went wrong!");
+			e1.getCause().printStackTrace();
 		}
-		return result;
 	}
 
 	/**
@@ -326,37 +501,17 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 	 * @return the vehicle distribution
 	 */
 	private double[] calculateVehicleDistribution(Collection<Vehicle> vehicles) {
-		double[] result = new double[stations_to_nodes.length];
+		double[] result = new double[networkIndex.numStations()];
 
 		for (Vehicle v : vehicles) {
 			Schedule<TaxiTask> currSched = TaxiSchedules.asTaxiSchedule(v.getSchedule());
 			Link lastLink = Schedules.getLastLinkInSchedule(currSched);
-			int node = Integer.parseInt(lastLink.getToNode().getId().toString());
-			int station = (int) nodes_to_stations[node - 1][0];
+			int station = networkIndex.stationOf(lastLink.getToNode());
 			result[station - 1]++;
 		}
 		return result;
 	}
 
-	/**
-	 * Function: initMatlab --------------------------------------------------
-	 * This function gets the proxy object that will connect Java to MATLAB.
-	 * 
-	 * @throws MatlabConnectionException:
-	 *             this occurs when the connection to MATLAB fails
-	 * @throws IOException
-	 * @throws FileNotFoundException
-	 */
-	private void initMatlab() throws MatlabConnectionException, FileNotFoundException, IOException {
-		proxy = MatlabConnector.getProxy();
-		MatFileReader matfilereader = new MatFileReader(stationMap);
-		MLDouble station_to_node = (MLDouble) matfilereader.getMLArray("stationstonodes");
-		stations_to_nodes = station_to_node.getArray();
-		MLDouble node_to_station = (MLDouble) matfilereader.getMLArray("nodestostations");
-		nodes_to_stations = node_to_station.getArray();
-
-	}
-
 	/**
 	 * Function: notifyMobsimBeforeSimStep ------------------------------------
 	 * This function allows the optimizer to get into the process of the
@@ -364,6 +519,10 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 	 * reached, it first calls the cplex optimizer in MATLAB and then prints out
 	 * some diagnostics. It also sets rebalancing routes.
 	 * 
+	 * The vehicles are only rebalanced when a vehicle became idle or the
+	 * routes changed, and the requests are only scheduled when some are
+	 * waiting, so that most time steps do close to nothing.
+	 * 
 	 * @param MobsimBeforeSimStepEvent
 	 *            e
 	 */
@@ -371,11 +530,21 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 	public void notifyMobsimBeforeSimStep(@SuppressWarnings("rawtypes") MobsimBeforeSimStepEvent e) {
 		simTime = (int) e.getSimulationTime();
 
+		if (asyncOptimizer) {
+			collectOptimizerOutput(simTime);
+		}
+
 		if (simTime >= optimizerEndTime + optimizerDelay) {
 			if (use_stations) {
-
-				station_routes = new_station_routes;
-				station_reb_routes = new_station_reb_routes;
+				AMoDRouteTable table = new_station_routes.get();
+				if (table != station_routes.get()) {
+					station_routes.set(table);
+					station_reb_routes = table == null ? null : new AMoDRebalanceCursor(table, random.split());
+					rebalancePending = true;
+					if (table != null) {
+						pathStore.evict(table.getVersion());
+					}
+				}
 			} else {
 				routes = new_routes;
 				reb_routes = new_reb_routes;
@@ -384,7 +553,11 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 
 		if (isNewDecisionEpoch(simTime) && requiresReoptimization) {
 			try {
-				fraction_to_rebalance = callCPLEXOptimizer(simTime);
+				if (asyncOptimizer) {
+					submitOptimizer(simTime);
+				} else {
+					fraction_to_rebalance = callCPLEXOptimizer(simTime);
+				}
 				// number that are assigned to rebalance in this time-step, NOT
 				// total number rebalancing.
 
@@ -409,8 +582,12 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 				if (doUnscheduleAwaitingRequests && vehicleDiversion) {
 					handleAimlessDriveTasks();
 				}
+				if (doUnscheduleAwaitingRequests) {
+					vehicleIndex.updateAll();
+				}
 
 				requiresReoptimization = true;
+				rebalancePending = true;
 				System.out.println("Number of passengers in queue: " + unplannedRequests.size());
 				printDiagnostics(simTime);
 			} catch (IOException | MatlabConnectionException | MatlabInvocationException e1) {
@@ -419,9 +596,47 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 			}
 		}
 
-		int rebalancecount = rebalanceVehicles();
-		scheduleUnplannedRequests();
+		if (vehicleIndex.checkNewlyIdle()) {
+			rebalancePending = true;
+		}
+		// the node-wise rebalancing draws its chance anew in every time step
+		if (rebalancePending || !use_stations) {
+			int rebalancecount = rebalanceVehicles();
+		}
+		if (hasRequestsToSchedule()) {
+			scheduleUnplannedRequests();
+		}
+
+	}
 
+	/**
+	 * Function hasRequestsToSchedule
+	 * ------------------------------
+	 * @return whether there are requests to schedule in this time step:
+	 *         requests in the queue, or rolled over requests that go back into
+	 *         it now.
+	 */
+	private boolean hasRequestsToSchedule() {
+		if (!unplannedRequests.isEmpty()) {
+			return true;
+		}
+		return !rolloverRequests.isEmpty() && (int) (simTime) % reschedulePeriod == 0;
+	}
+
+	/**
+	 * Function: notifyMobsimBeforeCleanup -----------------------------------
+	 * Stops the threads of the optimizer at the end of the simulation, so
+	 * that a running solve or the decoding workers do not outlive it.
+	 * 
+	 * @param MobsimBeforeCleanupEvent
+	 *            e
+	 */
+	@Override
+	public void notifyMobsimBeforeCleanup(@SuppressWarnings("rawtypes") MobsimBeforeCleanupEvent e) {
+		if (optimizationExecutor != null) {
+			optimizationExecutor.shutdown();
+		}
+		pathDecoder.shutdown();
 	}
 
 	private void printDiagnostics(double simTime) {
@@ -436,24 +651,24 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 		System.out.println("Total number of vehicles serving: " + stats.numberServing());
 		System.out.println("Total number of vehicles rebalancing: " + stats.numberRebalancing());
 		System.out.println("Total number of vehicles chilling: " + stats.numberIdle());
+		System.out.println("Optimizer routes: " + pathStore.getStatistics());
 	}
 
 	private int rebalanceVehicles() {
 		int rebalancecount;
 		if (use_stations) {
-			if (legacyRebalance) {
-				rebalancecount = new AMoDStationSchedulingProblem(optimContext, dispatchFinder, router,
-						nodes_to_stations, stations_to_nodes).legacyRebalanceVehicles(rebalance_queue,
-								fraction_to_rebalance);
+			if (legacyRebalance || fallbackRebalance) {
+				rebalancecount = stationProblem.legacyRebalanceVehicles(rebalance_queue,
+						fraction_to_rebalance);
+				rebalancePending = false;
 			} else {
-				rebalancecount = new AMoDStationSchedulingProblem(optimContext, dispatchFinder, router,
-						nodes_to_stations, stations_to_nodes).rebalanceVehicles(station_reb_routes,
-								fraction_to_rebalance);
+				rebalancecount = stationProblem.rebalanceVehicles(station_reb_routes,
+						fraction_to_rebalance);
+				rebalancePending = stationProblem.rebalanceMissed();
 			}
 
 		} else {
-			rebalancecount = new AMoDNodesSchedulingProblem(optimContext, dispatchFinder, router)
-					.rebalanceVehicles(reb_routes, fraction_to_rebalance);
+			rebalancecount = nodesProblem.rebalanceVehicles(reb_routes, fraction_to_rebalance);
 		}
 		return rebalancecount;
 	}
@@ -484,20 +699,25 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 			unplannedRequests.addAll(rolloverRequests);
 			rolloverRequests.clear();
 		}
-		int[] tempstats = new int[2];
-		if (use_stations) {
+		int[] tempstats;
+		if (use_stations && batchDispatcher != null) {
+			if ((int) (simTime) % dispatchBatchWindow == 0) {
+				Set<TaxiRequest> newRollovers = stationProblem.scheduleUnplannedRequests(
+						(Queue<TaxiRequest>) unplannedRequests, station_routes.get(), batchDispatcher);
+				rolloverRequests.addAll(newRollovers);
+			}
+		} else if (use_stations) {
 			try {
-				Set<TaxiRequest> newRollovers = new AMoDStationSchedulingProblem(optimContext, dispatchFinder, router,
-						nodes_to_stations, stations_to_nodes)
-								.scheduleUnplannedRequests((Queue<TaxiRequest>) unplannedRequests, station_routes);
+				Set<TaxiRequest> newRollovers = stationProblem
+						.scheduleUnplannedRequests((Queue<TaxiRequest>) unplannedRequests, station_routes.get());
 				rolloverRequests.addAll(newRollovers);
 			} catch (FileNotFoundException | UnsupportedEncodingException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 		} else {
-			tempstats = new AMoDNodesSchedulingProblem(optimContext, dispatchFinder, router)
-					.scheduleUnplannedRequests((List<TaxiRequest>) unplannedRequests, routes, reb_routes);
+			tempstats = nodesProblem.scheduleUnplannedRequests((List<TaxiRequest>) unplannedRequests, routes,
+					reb_routes);
 		}
 
 		// stats.num_using_routes += tempstats[0];
@@ -517,6 +737,21 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 	public void nextTask(Schedule<? extends Task> schedule) {
 		shiftTimings(schedule);
 		schedule.nextTask();
+		vehicleIndex.update(schedule.getVehicle());
+	}
+
+	/**
+	 * Function nextLinkEntered
+	 * ------------------------
+	 * A vehicle that can be diverted is dispatched from the link it is on, so
+	 * it may have moved to another station.
+	 *
+	 * @param driveTask
+	 */
+	@Override
+	public void nextLinkEntered(DriveTask driveTask) {
+		super.nextLinkEntered(driveTask);
+		vehicleIndex.update(driveTask.getSchedule().getVehicle());
 	}
 
 	/**
@@ -566,158 +801,21 @@ public class AMoDTaxiOptimizer extends AbstractTaxiOptimizer {
 
 	/**
 	 * Function: decomposePassPaths ------------------------------------- This
-	 * function takes in the collection that holds all the routes and one single
-	 * MLCell which represents one route and adds the parsed path into the
-	 * above-mentioned collection.
+	 * function takes in the collection that holds all the routes and the
+	 * paths returned by the optimizer (lists of MATLAB node numbers) and adds
+	 * the parsed paths into the above-mentioned collection.
 	 * 
 	 * @param routes
-	 * @param j
-	 */
-	private void decomposePassPaths(Map<Link, Set<Path>> routes, MLCell j) {
-		Network network = optimContext.network;
-		Map<Id<Node>, ? extends Node> nodenetwork = network.getNodes();
-		ArrayList<MLArray> paths = j.cells();
-		for (MLArray path : paths) {
-			MLCell cellpath = (MLCell) path;
-			if (path.getM() != 0) {
-				List<Node> nodelist = new ArrayList<Node>();
-				List<Link> linklist = new ArrayList<Link>();
-				MLDouble route = (MLDouble) (cellpath.get(0));
-				double[][] nodes = route.getArray();
-				for (int i = 0; i < nodes.length - 1; i++) {
-					int currnode = (int) nodes[i][0];
-					int nextnode = (int) nodes[i + 1][0];
-					Node start = nodenetwork.get(Id.createNodeId(Integer.toString(currnode)));
-					Node finish = nodenetwork.get(Id.createNodeId(Integer.toString(nextnode)));
-					nodelist.add(start);
-					Collection<? extends Link> possiblelinks = start.getOutLinks().values();
-					for (Link l : possiblelinks) {
-						if (l.getToNode().equals(finish)) {
-							linklist.add(l);
-							break;
-						}
-					}
-					if (i == nodes.length - 2) {
-						nodelist.add(finish);
-					}
-				}
-				Path temppath = AMoDSchedulingUtils.convertNodeListtoPath(nodelist, linklist);
-				if (routes.get(linklist.get(0)) == null) { // add path to
-															// routelist
-					routes.put(linklist.get(0), new HashSet<Path>());
-				}
-				routes.get(linklist.get(0)).add(temppath);
-			}
-		}
-	}
-
-	/**
-	 * Function: decomposePassPathsStations ------------------------------------
-	 * This function takes in an MLCell that contains route information and adds
-	 * it to the map of station-routes that is used by the optimizer. It does so
-	 * by breaking it down into its component parts and storing it as a
-	 * LeastCostPathCalculator.Path. It is then stored in the map by its
-	 * stations. The start station is the first key, and the end station is the
-	 * second key.
-	 * 
-	 * @param new_station_routes
-	 * @param j
+	 * @param paths
 	 */
-	private void decomposePassPathsStations(Map<Integer, Map<Integer, Set<Path>>> new_station_routes, MLCell j) {
-		Network network = optimContext.network;
-		Map<Id<Node>, ? extends Node> nodenetwork = network.getNodes();
-		if (j == null) {
-			return;
-		}
-		ArrayList<MLArray> paths = j.cells();
-		for (MLArray path : paths) {
-			MLCell cellpath = (MLCell) path;
-			if (path.getM() != 0) {
-				List<Node> nodelist = new ArrayList<Node>();
-				List<Link> linklist = new ArrayList<Link>();
-				MLDouble route = (MLDouble) (cellpath.get(0));
-				double[][] nodes = route.getArray();
-				for (int i = 0; i < nodes.length - 1; i++) {
-					int currnode = (int) nodes[i][0];
-					int nextnode = (int) nodes[i + 1][0];
-					Node start = nodenetwork.get(Id.createNodeId(Integer.toString(currnode)));
-					Node finish = nodenetwork.get(Id.createNodeId(Integer.toString(nextnode)));
-					nodelist.add(start);
-					Collection<? extends Link> possiblelinks = start.getOutLinks().values();
-					for (Link l : possiblelinks) {
-						if (l.getToNode().equals(finish)) {
-							linklist.add(l);
-							break;
-						}
-					}
-					if (i == nodes.length - 2) {
-						nodelist.add(finish);
-					}
-				}
-				Path temppath = AMoDSchedulingUtils.convertNodeListtoPath(nodelist, linklist);
-				String id_of_startnode = nodelist.get(0).getId().toString();
-				int start_station = (int) nodes_to_stations[Integer.parseInt(id_of_startnode)][0];
-				String id_of_endnode = nodelist.get(nodelist.size() - 1).getId().toString();
-				int end_station = (int) nodes_to_stations[Integer.parseInt(id_of_endnode)][0];
-				if (new_station_routes.get(start_station) == null) {
-					new_station_routes.put(start_station, new HashMap<Integer, Set<Path>>());
-				}
-				if (new_station_routes.get(start_station).get(end_station) == null) {
-					new_station_routes.get(start_station).put(end_station, new HashSet<Path>());
-				}
-				new_station_routes.get(start_station).get(end_station).add(temppath);
-			}
-		}
-	}
-
-	/**
-	 * Function: decomposeRebPathsStations ----------------------------------
-	 * This function has similar functionality to the decomposePassPaths
-	 * function except for how it stores the data. It stores the data as a Map
-	 * where the key is a station and the value is a set of possible rebalancing
-	 * routes that a car at that station could take.
-	 * 
-	 * @param new_station_reb_routes2
-	 * @param rebpaths
-	 */
-	private void decomposeRebPathsStations(Map<Integer, List<Path>> new_station_reb_routes2, MLCell rebpaths) {
-		Network network = optimContext.network;
-		Map<Id<Node>, ? extends Node> nodenetwork = network.getNodes();
-		ArrayList<MLArray> paths = rebpaths.cells();
-		for (MLArray path : paths) {
-			MLCell cellpath = (MLCell) path;
-			if (path.getM() != 0) {
-				List<Node> nodelist = new ArrayList<Node>();
-				List<Link> linklist = new ArrayList<Link>();
-				MLDouble route = (MLDouble) (cellpath.get(0));
-				double[][] nodes = route.getArray();
-				for (int i = 0; i < nodes.length - 1; i++) {
-					int currnode = (int) nodes[i][0];
-					int nextnode = (int) nodes[i + 1][0];
-					Node start = nodenetwork.get(Id.createNodeId(Integer.toString(currnode)));
-					Node finish = nodenetwork.get(Id.createNodeId(Integer.toString(nextnode)));
-					nodelist.add(start);
-					Collection<? extends Link> possiblelinks = start.getOutLinks().values();
-					for (Link l : possiblelinks) {
-						if (l.getToNode().equals(finish)) {
-							linklist.add(l);
-							break;
-						}
-					}
-					if (i == nodes.length - 2) {
-						nodelist.add(finish);
-					}
-				}
-				Path temppath = AMoDSchedulingUtils.convertNodeListtoPath(nodelist, linklist);
-				if (nodelist.size() > 0) {
-					String id_of_startnode = nodelist.get(0).getId().toString();
-					int start_station = (int) nodes_to_stations[Integer.parseInt(id_of_startnode) - 1][0];
-					if (new_station_reb_routes2.get(start_station) == null) {
-						new_station_reb_routes2.put(start_station, new ArrayList<Path>());
-					}
-					new_station_reb_routes2.get(start_station).add(temppath);
-				}
+	private void decomposePassPaths(Map<Link, Set<Path>> routes, AMoDPathBuffer paths) {
+		for (Path temppath : pathDecoder.decodeAll(paths)) {
+			List<Link> linklist = temppath.links;
+			if (routes.get(linklist.get(0)) == null) { // add path to
+														// routelist
+				routes.put(linklist.get(0), new HashSet<Path>());
 			}
+			routes.get(linklist.get(0)).add(temppath);
 		}
 	}
 }
@@ -26,6 +26,23 @@ public class AMoDTaxiOptimizerParams
 	 private final String NEIGHBOURHOOD_SIZE = "neighbourhoodSize";
 	 private final String RESCHEDULE_PERIOD = "reschedulePeriod";
 	 private final String AMOD_DISPATCH = "amodDispatch";
+	 private final String ASYNC_OPTIMIZER = "asyncOptimizer";
+	 private final String MATLAB_TRANSPORT = "matlabTransport";
+	 private final String OPTIMIZER_BACKEND = "optimizerBackend";
+	 private final String MATLAB_SESSIONS = "matlabSessions";
+	 private final String OPTIMIZER_TIME_BUDGET = "optimizerTimeBudget";
+	 private final String OPTIMIZER_ARCHIVE_MODE = "optimizerArchiveMode";
+	 private final String OPTIMIZER_ARCHIVE_FILE = "optimizerArchiveFile";
+	 private final String DECODER_PARALLELISM = "decoderParallelism";
+	 private final String DISPATCH_BATCH_WINDOW = "dispatchBatchWindow";
+	 private final String LEG_ROUTER = "legRouter";
+	 private final String DISPATCH_RING = "dispatchRing";
+	 private final String DISPATCH_COST_CUTOFF = "dispatchCostCutoff";
+	 private final String DISPATCH_MAX_RING = "dispatchMaxRing";
+	 private final String DISPATCH_BEELINE_SPEED = "dispatchBeelineSpeed";
+	 private final String DISPATCH_UNASSIGNED_COST = "dispatchUnassignedCost";
+	 private final String LANDMARK_COUNT = "landmarkCount";
+	 private final String LANDMARK_CACHE = "landmarkCache";
 	 
 	 /** The actual parameters */
 	 public int optimizerDelay;
@@ -39,6 +56,38 @@ public class AMoDTaxiOptimizerParams
 	 public int neighbourhoodSize;
 	 public int reschedulePeriod;
 	 public boolean amodDispatch;
+	 /** If true, the optimizer runs in the background while the simulation keeps going */
+	 public boolean asyncOptimizer;
+	 /** How data is exchanged with MATLAB: "memory" (through the session) or "file" (.mat files) */
+	 public String matlabTransport;
+	 /** Which optimizer computes the routes: "matlab" (runOptimization.m with CPLEX) or "java" (no MATLAB needed) */
+	 public String optimizerBackend;
+	 /** The most MATLAB sessions the JVM may run at the same time (shared by all optimizers) */
+	 public int matlabSessions;
+	 /** Wall-clock seconds an epoch may spend in the optimizer before falling back to Java legacy rebalancing (0 means no limit, and it cannot be set with asyncOptimizer) */
+	 public double optimizerTimeBudget;
+	 /** "record" saves every optimizer epoch to optimizerArchiveFile, "replay" serves them back instead of optimizing, "none" does neither */
+	 public String optimizerArchiveMode;
+	 public String optimizerArchiveFile;
+	 /** The number of threads that decode the paths of the optimizer when they are all needed at once (1 decodes on the simulation thread) */
+	 public int decoderParallelism;
+	 /** Every how many seconds the waiting requests are matched to vehicles all at once (0 matches each request on its own, every second) */
+	 public int dispatchBatchWindow;
+	 /** How many rings of neighbouring stations the dispatch search goes through before it is widened */
+	 public int dispatchRing;
+	 /** The highest cost the dispatch search goes to, an hour of travel by default (0 for no limit) */
+	 public double dispatchCostCutoff;
+	 /** The most rings of neighbouring stations the dispatch search is widened to, before the request waits for the next time step (0 widens up to the whole network) */
+	 public int dispatchMaxRing;
+	 /** The average road speed [km/h] the batch dispatcher estimates pickup times with, from beeline distances */
+	 public double dispatchBeelineSpeed;
+	 /** The estimated pickup time [s] above which the batch dispatcher leaves a request for the next batch */
+	 public double dispatchUnassignedCost;
+	 /** "landmarks" routes pickups and patched legs with A* on landmarks, "dijkstra" with Dijkstra */
+	 public String legRouter;
+	 public int landmarkCount;
+	 /** The directory the landmarks of each network are saved in */
+	 public String landmarkCache;
 
 	 
 	 /** 
@@ -63,6 +112,27 @@ public class AMoDTaxiOptimizerParams
 			neighbourhoodSize = optimizerConfig.getInt(NEIGHBOURHOOD_SIZE);
 			reschedulePeriod = optimizerConfig.getInt(RESCHEDULE_PERIOD);
 			amodDispatch = optimizerConfig.getBoolean(AMOD_DISPATCH);
+			asyncOptimizer = optimizerConfig.getBoolean(ASYNC_OPTIMIZER, false);
+			matlabTransport = optimizerConfig.getString(MATLAB_TRANSPORT, "memory");
+			optimizerBackend = optimizerConfig.getString(OPTIMIZER_BACKEND, "matlab");
+			matlabSessions = optimizerConfig.getInt(MATLAB_SESSIONS, 1);
+			optimizerTimeBudget = optimizerConfig.getDouble(OPTIMIZER_TIME_BUDGET, 0);
+			if (asyncOptimizer && optimizerTimeBudget > 0) {
+				throw new IllegalArgumentException(OPTIMIZER_TIME_BUDGET + " cannot be used with " + ASYNC_OPTIMIZER
+						+ ", which never waits for the optimizer");
+			}
+			optimizerArchiveMode = optimizerConfig.getString(OPTIMIZER_ARCHIVE_MODE, "none");
+			optimizerArchiveFile = optimizerConfig.getString(OPTIMIZER_ARCHIVE_FILE, "output/optimizerarchive.bin.gz");
+			decoderParallelism = optimizerConfig.getInt(DECODER_PARALLELISM, 1);
+			dispatchBatchWindow = optimizerConfig.getInt(DISPATCH_BATCH_WINDOW, 0);
+			dispatchRing = optimizerConfig.getInt(DISPATCH_RING, 0);
+			dispatchCostCutoff = optimizerConfig.getDouble(DISPATCH_COST_CUTOFF, 3600);
+			dispatchMaxRing = optimizerConfig.getInt(DISPATCH_MAX_RING, 0);
+			dispatchBeelineSpeed = optimizerConfig.getDouble(DISPATCH_BEELINE_SPEED, 25);
+			dispatchUnassignedCost = optimizerConfig.getDouble(DISPATCH_UNASSIGNED_COST, 3600);
+			legRouter = optimizerConfig.getString(LEG_ROUTER, "dijkstra");
+			landmarkCount = optimizerConfig.getInt(LANDMARK_COUNT, 16);
+			landmarkCache = optimizerConfig.getString(LANDMARK_CACHE, "output/landmarks");
 			
 			//endTime = optimizerConfig.getInt(END_TIME);
 	    }
@@ -20,10 +20,17 @@ import org.matsim.core.router.util.TravelTime;
 public class AMoDTaxiScheduler
 				extends TaxiScheduler{
 
+	/** Kept up to date with the schedules changed here (null if none) */
+	private AMoDVehicleIndex vehicleIndex;
+
 	public AMoDTaxiScheduler(Scenario scenario, TaxiData taxiData, MobsimTimer timer, TaxiSchedulerParams params,
 			TravelTime travelTime, TravelDisutility travelDisutility) {
 		super(scenario, taxiData, timer, params, travelTime, travelDisutility);
 	}
+
+	public void setVehicleIndex(AMoDVehicleIndex vehicleIndex) {
+		this.vehicleIndex = vehicleIndex;
+	}
 	
 	public void scheduleFirstHalf(Vehicle vehicle, TaxiRequest request, VrpPathWithTravelData toPickup) 
 	{
@@ -37,6 +44,9 @@ public class AMoDTaxiScheduler
 		double pickupEndTime = Math.max(toPickup.getArrivalTime(), request.getT0())
 				+ params.pickupDuration;
 		schedule.addTask(new TaxiPickupTask(toPickup.getArrivalTime(), pickupEndTime, request));
+		if (vehicleIndex != null) {
+			vehicleIndex.update(vehicle);
+		}
 	}
 
 	public double calcJourneyStartTime(Schedule<TaxiTask> schedule) {
@@ -53,5 +63,8 @@ public class AMoDTaxiScheduler
 		schedule.addTask(new TaxiDropoffTask(t4, t5, req));
 		
 		appendStayTask(schedule);
+		if (vehicleIndex != null) {
+			vehicleIndex.update(v);
+		}
 	}
 }
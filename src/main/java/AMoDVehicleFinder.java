@@ -0,0 +1,23 @@
+import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.taxi.data.TaxiRequest;
+import org.matsim.contrib.taxi.optimizer.BestDispatchFinder.Dispatch;
+
+/**
+ * Interface: AMoDVehicleFinder
+ *
+ * This interface is implemented by the ways of finding the vehicle to send
+ * to a request: the station-wise AMoDDispatchFinder, or MATSim's
+ * BestDispatchFinder wrapped by the AMoDTaxiOptimizer.
+ */
+public interface AMoDVehicleFinder {
+
+	/**
+	 * Function findBestVehicleForRequest
+	 * ----------------------------------
+	 * @param req
+	 * @param vehicles: the fleet
+	 * @return the vehicle that can get to the request first with its path
+	 *         there, or null if no vehicle can get to the request.
+	 */
+	Dispatch<TaxiRequest> findBestVehicleForRequest(TaxiRequest req, Iterable<? extends Vehicle> vehicles);
+}
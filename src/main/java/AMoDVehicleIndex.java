@@ -0,0 +1,276 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.dvrp.data.Vehicle;
+import org.matsim.contrib.dvrp.util.LinkTimePair;
+import org.matsim.contrib.taxi.optimizer.TaxiOptimizerContext;
+import org.matsim.contrib.taxi.scheduler.TaxiScheduler;
+import org.matsim.core.mobsim.framework.MobsimTimer;
+
+/**
+ * Class: AMoDVehicleIndex
+ *
+ * This class keeps the state of the vehicles of the fleet that the
+ * optimizer needs over and over: where and when each vehicle can next be
+ * dispatched from (getImmediateDiversionOrEarliestIdleness), the station of
+ * that place, and whether the vehicle is idle. The state is kept in arrays
+ * by a dense index of the vehicles, and the vehicles are also kept in
+ * buckets by station, so that the dispatcher only has to look at the
+ * vehicles of the station of a request, instead of the whole fleet. The
+ * idle vehicles are kept in buckets of their own, for the rebalancers.
+ *
+ * The state is not updated by itself: whoever changes the schedule of a
+ * vehicle (scheduling a trip, moving to the next task or link) calls update
+ * for it. Between updates, a vehicle cannot be dispatched earlier than
+ * now, and it stops being idle at the end of its service time.
+ */
+public class AMoDVehicleIndex {
+
+	private final TaxiScheduler scheduler;
+	private final MobsimTimer timer;
+	private final NetworkIndex networkIndex;
+
+	/** The fleet, by dense index */
+	private final Vehicle[] vehicles;
+	private final Map<Id<Vehicle>, Integer> vehicleIndex;
+	/** The link index each vehicle can next be dispatched from (-1 if none) */
+	private final int[] departureLink;
+	/** The time each vehicle can next be dispatched at, if not earlier than now */
+	private final double[] departureTime;
+	/** Whether each vehicle waits at the end of its schedule */
+	private final boolean[] idle;
+	/** The vehicles that can be dispatched, by station */
+	private final Buckets dispatchable;
+	/** The idle vehicles, by station */
+	private final Buckets idleVehicles;
+
+	private boolean initialized = false;
+	/** Whether a vehicle became idle since the last checkNewlyIdle */
+	private boolean newlyIdle = false;
+
+	/**
+	 * Constructor: AMoDVehicleIndex
+	 * -----------------------------
+	 * The state is filled the first time it is asked for, once the
+	 * schedules of the vehicles exist.
+	 *
+	 * @param optimContext
+	 * @param networkIndex
+	 */
+	public AMoDVehicleIndex(TaxiOptimizerContext optimContext, NetworkIndex networkIndex) {
+		this.scheduler = optimContext.scheduler;
+		this.timer = optimContext.timer;
+		this.networkIndex = networkIndex;
+		Collection<? extends Vehicle> fleet = optimContext.taxiData.getVehicles().values();
+		this.vehicles = fleet.toArray(new Vehicle[fleet.size()]);
+		this.vehicleIndex = new HashMap<Id<Vehicle>, Integer>(2 * vehicles.length);
+		for (int i = 0; i < vehicles.length; i++) {
+			vehicleIndex.put(vehicles[i].getId(), i);
+		}
+		this.departureLink = new int[vehicles.length];
+		this.departureTime = new double[vehicles.length];
+		this.idle = new boolean[vehicles.length];
+		Arrays.fill(departureLink, -1);
+		this.dispatchable = new Buckets(vehicles.length, networkIndex.numStations());
+		this.idleVehicles = new Buckets(vehicles.length, networkIndex.numStations());
+	}
+
+	/**
+	 * Function getVehicles
+	 * --------------------
+	 * @param station
+	 * @return the vehicles that can be dispatched from the station
+	 *         (read-only).
+	 */
+	public List<Vehicle> getVehicles(int station) {
+		if (!initialized) {
+			updateAll();
+		}
+		return dispatchable.get(station);
+	}
+
+	/**
+	 * Function getIdleVehicles
+	 * ------------------------
+	 * The list changes when the vehicles in it are updated, so it has to be
+	 * copied before rescheduling them.
+	 *
+	 * @param station
+	 * @return the idle vehicles at the station (read-only). Some of them may
+	 *         have reached the end of their service time (see isIdle).
+	 */
+	public List<Vehicle> getIdleVehicles(int station) {
+		if (!initialized) {
+			updateAll();
+		}
+		return idleVehicles.get(station);
+	}
+
+	/**
+	 * Function getDeparture
+	 * ---------------------
+	 * @param vehicle
+	 * @return where and when the vehicle can next be dispatched, or null if
+	 *         it cannot be.
+	 */
+	public LinkTimePair getDeparture(Vehicle vehicle) {
+		int v = indexOf(vehicle);
+		if (departureLink[v] == -1) {
+			return null;
+		}
+		return new LinkTimePair(networkIndex.getLink(departureLink[v]),
+				Math.max(departureTime[v], timer.getTimeOfDay()));
+	}
+
+	/**
+	 * Function getStation
+	 * -------------------
+	 * @param vehicle
+	 * @return the station the vehicle can next be dispatched from (0 for
+	 *         none), or -1 if it cannot be dispatched.
+	 */
+	public int getStation(Vehicle vehicle) {
+		return dispatchable.stationOf[indexOf(vehicle)];
+	}
+
+	/**
+	 * Function isIdle
+	 * ---------------
+	 * @param vehicle
+	 * @return whether the vehicle is waiting at the end of its schedule
+	 *         (like TaxiScheduler.isIdle).
+	 */
+	public boolean isIdle(Vehicle vehicle) {
+		int v = indexOf(vehicle);
+		return idle[v] && timer.getTimeOfDay() < vehicle.getT1();
+	}
+
+	/**
+	 * Function checkNewlyIdle
+	 * -----------------------
+	 * @return whether a vehicle became idle since the last call.
+	 */
+	public boolean checkNewlyIdle() {
+		boolean result = newlyIdle;
+		newlyIdle = false;
+		return result;
+	}
+
+	/**
+	 * Function update
+	 * ---------------
+	 * Reads the state of a vehicle whose schedule changed, and moves it to
+	 * the buckets of where it can now be dispatched from.
+	 *
+	 * @param vehicle
+	 */
+	public void update(Vehicle vehicle) {
+		Integer v = vehicleIndex.get(vehicle.getId());
+		if (v == null || !initialized) {
+			return;
+		}
+		read(v);
+	}
+
+	/**
+	 * Function updateAll
+	 * ------------------
+	 * Reads the state of every vehicle of the fleet, after changes to many
+	 * schedules at once.
+	 */
+	public void updateAll() {
+		initialized = true;
+		for (int v = 0; v < vehicles.length; v++) {
+			read(v);
+		}
+	}
+
+	private int indexOf(Vehicle vehicle) {
+		if (!initialized) {
+			updateAll();
+		}
+		return vehicleIndex.get(vehicle.getId());
+	}
+
+	private void read(int v) {
+		LinkTimePair departure = scheduler.getImmediateDiversionOrEarliestIdleness(vehicles[v]);
+		boolean wasIdle = idle[v];
+		idle[v] = scheduler.isIdle(vehicles[v]);
+		if (idle[v] && !wasIdle) {
+			newlyIdle = true;
+		}
+		if (departure == null) {
+			departureLink[v] = -1;
+			dispatchable.move(v, -1);
+			idleVehicles.move(v, -1);
+		} else {
+			departureLink[v] = networkIndex.linkIndex(departure.link);
+			departureTime[v] = departure.time;
+			int station = networkIndex.stationOf(departure.link.getToNode());
+			dispatchable.move(v, station);
+			idleVehicles.move(v, idle[v] ? station : -1);
+		}
+	}
+
+	/**
+	 * Class: Buckets
+	 *
+	 * The vehicles by station (0 for nodes without station). A vehicle leaves
+	 * its bucket by swapping the last vehicle of the bucket into its slot.
+	 */
+	private class Buckets {
+		/** The bucket of each vehicle (-1 if none) */
+		final int[] stationOf;
+		/** Where each vehicle is in its bucket */
+		final int[] slotOf;
+		final List<List<Vehicle>> buckets;
+
+		Buckets(int numVehicles, int numStations) {
+			this.stationOf = new int[numVehicles];
+			this.slotOf = new int[numVehicles];
+			Arrays.fill(stationOf, -1);
+			this.buckets = new ArrayList<List<Vehicle>>(numStations + 1);
+			for (int s = 0; s <= numStations; s++) {
+				buckets.add(new ArrayList<Vehicle>());
+			}
+		}
+
+		List<Vehicle> get(int station) {
+			if (station < 0 || station >= buckets.size()) {
+				return Collections.emptyList();
+			}
+			return Collections.unmodifiableList(buckets.get(station));
+		}
+
+		void move(int v, int station) {
+			if (station >= buckets.size()) {
+				station = -1;
+			}
+			int old = stationOf[v];
+			if (old == station) {
+				return;
+			}
+			if (old != -1) {
+				List<Vehicle> bucket = buckets.get(old);
+				Vehicle last = bucket.remove(bucket.size() - 1);
+				if (last != vehicles[v]) {
+					int lastIndex = vehicleIndex.get(last.getId());
+					bucket.set(slotOf[v], last);
+					slotOf[lastIndex] = slotOf[v];
+				}
+			}
+			stationOf[v] = station;
+			if (station != -1) {
+				List<Vehicle> bucket = buckets.get(station);
+				slotOf[v] = bucket.size();
+				bucket.add(vehicles[v]);
+			}
+		}
+	}
+}
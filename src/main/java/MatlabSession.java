@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import matlabcontrol.MatlabConnectionException;
+import matlabcontrol.MatlabInvocationException;
+import matlabcontrol.MatlabProxy;
+
+import com.jmatio.io.MatFileWriter;
+import com.jmatio.types.MLArray;
+import com.jmatio.types.MLDouble;
+
+/**
+ * Class: MatlabSession
+ *
+ * This class is one MATLAB engine checked out of the MatlabSessionPool. Each
+ * session has its own working directory, where the .mat files exchanged with
+ * runOptimization.m are written and read, so that sessions running at the
+ * same time do not overwrite each other's files. This includes the link map
+ * of the network the session is solving for.
+ */
+public class MatlabSession {
+
+	/** Instance variables */
+	private MatlabProxy proxy;
+	private final File workingDirectory;
+	private final File scriptDirectory;
+	private final int id;
+	/** The link map last written to the working directory */
+	private double[][] linkMap;
+
+	/**
+	 * Constructor: MatlabSession
+	 * --------------------------
+	 * Connects to MATLAB and moves the session into its working directory.
+	 *
+	 * @param id
+	 * @param scriptDirectory: the folder that holds runOptimization.m
+	 * @param workingDirectory
+	 * @throws MatlabConnectionException
+	 * @throws MatlabInvocationException
+	 */
+	MatlabSession(int id, File scriptDirectory, File workingDirectory)
+			throws MatlabConnectionException, MatlabInvocationException {
+		this.id = id;
+		this.scriptDirectory = scriptDirectory;
+		this.workingDirectory = workingDirectory;
+		workingDirectory.mkdirs();
+		connect();
+	}
+
+	/**
+	 * Function connect
+	 * ----------------
+	 * Gets a new proxy and sets up the MATLAB path and working directory.
+	 *
+	 * @throws MatlabConnectionException
+	 * @throws MatlabInvocationException
+	 */
+	void connect() throws MatlabConnectionException, MatlabInvocationException {
+		proxy = MatlabConnector.getProxy();
+		proxy.eval("addpath('" + scriptDirectory.getAbsolutePath() + "')");
+		enterWorkingDirectory();
+	}
+
+	/**
+	 * Function isHealthy
+	 * ------------------
+	 * @return true if the session is connected and evaluates commands.
+	 */
+	boolean isHealthy() {
+		if (!proxy.isConnected()) {
+			return false;
+		}
+		try {
+			proxy.eval("1;");
+			return true;
+		} catch (MatlabInvocationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Function close
+	 * --------------
+	 * Releases the connection to MATLAB. MATLAB itself keeps running so that
+	 * it can be reused by a later run.
+	 */
+	void close() {
+		proxy.disconnect();
+	}
+
+	/**
+	 * Function enterWorkingDirectory
+	 * ------------------------------
+	 * Makes the working directory of this session the current folder of
+	 * MATLAB. This is done on every checkout in case a script changed it.
+	 *
+	 * @throws MatlabInvocationException
+	 */
+	public void enterWorkingDirectory() throws MatlabInvocationException {
+		proxy.eval("cd('" + workingDirectory.getAbsolutePath() + "')");
+	}
+
+	/**
+	 * Function file
+	 * -------------
+	 * @param name
+	 * @return the path of the given file in the working directory.
+	 */
+	public String file(String name) {
+		return new File(workingDirectory, name).getPath();
+	}
+
+	/**
+	 * Function writeLinkMap
+	 * ---------------------
+	 * Writes linkMap.mat (the from and to node of every link, read by
+	 * adjustRoadCap.m) into the working directory, unless this link map is
+	 * already there.
+	 *
+	 * @param linkMap
+	 * @throws IOException
+	 */
+	public void writeLinkMap(double[][] linkMap) throws IOException {
+		if (this.linkMap == linkMap) {
+			return;
+		}
+		ArrayList<MLArray> list = new ArrayList<MLArray>();
+		list.add(new MLDouble("linkMap", linkMap));
+		new MatFileWriter(file("linkMap.mat"), list);
+		this.linkMap = linkMap;
+	}
+
+	public MatlabProxy getProxy() {
+		return proxy;
+	}
+
+	public int getId() {
+		return id;
+	}
+}
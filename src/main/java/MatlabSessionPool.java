@@ -0,0 +1,126 @@
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import matlabcontrol.MatlabConnectionException;
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * Class: MatlabSessionPool
+ *
+ * This class hands out MATLAB sessions to the optimizers of the JVM. At most
+ * maxSessions MATLAB engines are started; they are started lazily the first
+ * time they are needed. An optimizer checks a session out for the duration
+ * of a solve and returns it afterwards, so several scenarios (or several
+ * sub-problems of one scenario) can solve in parallel, each in its own
+ * MATLAB engine and working directory.
+ *
+ * Sessions are health-checked when they are checked out and reconnected if
+ * MATLAB went away.
+ */
+public class MatlabSessionPool {
+
+	/** The folder with the MATLAB scripts, relative to the project */
+	public static final String SCRIPT_DIRECTORY = "MATLAB_utils";
+	/** The working directories of the sessions go here */
+	public static final String SESSIONS_DIRECTORY = "MATLAB_utils/sessions";
+
+	private static MatlabSessionPool pool;
+
+	/** Instance variables */
+	private final Deque<MatlabSession> idle = new ArrayDeque<MatlabSession>();
+	private int maxSessions;
+	private int sessionCount = 0;
+
+	private MatlabSessionPool(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Function getPool
+	 * ----------------
+	 * Returns the pool shared by the JVM. If it already exists with fewer
+	 * sessions than requested, its bound is raised.
+	 *
+	 * @param maxSessions
+	 * @return the session pool
+	 */
+	public static synchronized MatlabSessionPool getPool(int maxSessions) {
+		if (pool == null) {
+			pool = new MatlabSessionPool(Math.max(1, maxSessions));
+		} else {
+			pool.raiseBound(maxSessions);
+		}
+		return pool;
+	}
+
+	private synchronized void raiseBound(int max) {
+		if (max > maxSessions) {
+			maxSessions = max;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Function checkout
+	 * -----------------
+	 * Takes a healthy session out of the pool, starting a new one if none is
+	 * idle and the bound allows it, and waiting for one to be returned
+	 * otherwise.
+	 *
+	 * @return a session for the exclusive use of the caller
+	 * @throws MatlabConnectionException:
+	 *             this occurs if a new session cannot be connected.
+	 * @throws MatlabInvocationException
+	 * @throws InterruptedException
+	 */
+	public MatlabSession checkout() throws MatlabConnectionException, MatlabInvocationException, InterruptedException {
+		MatlabSession session = null;
+		int newId = -1;
+		synchronized (this) {
+			while (idle.isEmpty() && sessionCount >= maxSessions) {
+				wait();
+			}
+			if (!idle.isEmpty()) {
+				session = idle.pop();
+			} else {
+				newId = ++sessionCount;
+			}
+		}
+
+		try {
+			if (session == null) {
+				// connecting takes a while, so it is done outside the lock
+				session = new MatlabSession(newId, new File(SCRIPT_DIRECTORY),
+						new File(SESSIONS_DIRECTORY, "session" + newId));
+				System.out.println("Started MATLAB session " + newId + " of at most " + maxSessions);
+			} else if (!session.isHealthy()) {
+				System.out.println("MATLAB session " + session.getId() + " is not responding, reconnecting");
+				session.close();
+				session.connect();
+			} else {
+				session.enterWorkingDirectory();
+			}
+			return session;
+		} catch (MatlabConnectionException | MatlabInvocationException | RuntimeException e) {
+			synchronized (this) {
+				// give the slot back so that another caller can try again
+				sessionCount--;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Function checkin
+	 * ----------------
+	 * Returns a session to the pool.
+	 *
+	 * @param session
+	 */
+	public synchronized void checkin(MatlabSession session) {
+		idle.push(session);
+		notifyAll();
+	}
+}
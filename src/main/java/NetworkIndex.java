@@ -0,0 +1,407 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+
+import com.jmatio.io.MatFileReader;
+import com.jmatio.types.MLDouble;
+
+/**
+ * Class: NetworkIndex
+ *
+ * This class gives the nodes and links of the network dense int indices,
+ * once, so that the hot loops of the optimizer can work on arrays instead
+ * of building Ids and looking them up in maps.
+ *
+ * Node and link Ids are the MATLAB numbers of the nodes and links (node "k"
+ * is node k of the MATLAB road graph, link "k" is column k of linkMap), so
+ * the index also maps MATLAB numbers to dense indices.
+ *
+ * The link going from one node to another is found in a primitive
+ * open-addressing hash table keyed by the pair of node indices, which turns
+ * decoding an optimizer path into an array walk.
+ *
+ * The station map (nodestostations and stationstonodes of the station map
+ * .mat file) is kept by node index as well, so finding the station of a
+ * node is an array lookup instead of parsing its Id.
+ *
+ * The out-links of each node have consecutive indices, and two stations
+ * are neighbours if a link goes from one to the other, which lets searches
+ * walk the network and the stations without maps.
+ */
+public class NetworkIndex {
+
+	private static final long EMPTY = -1L;
+
+	/** Dense indices */
+	private final Node[] nodes;
+	private final Link[] links;
+	private final int[] linkFrom;
+	private final int[] linkTo;
+	/** The out-links of node i are the links firstOutLink[i] to firstOutLink[i+1]-1 */
+	private final int[] firstOutLink;
+
+	/** MATLAB numbers of the nodes and links, and back */
+	private final int[] nodeNumber;
+	private final int[] linkNumber;
+	private final int[] nodeByNumber;
+	private final int[] linkByNumber;
+
+	/** Ids -> dense indices */
+	private final Map<Id<Node>, Integer> nodeById;
+	private final Map<Id<Link>, Integer> linkById;
+
+	/** The station (1-based, 0 for none) of each node index */
+	public final int[] nodeToStation;
+	/** Whether some nodes are in no station */
+	private final boolean nodesWithoutStation;
+	/**
+	 * The node indices of station s at s - 1, starting with the node that
+	 * represents the station
+	 */
+	public final int[][] stationToNodes;
+	/** The stations a link goes to from station s, at s - 1 */
+	private final int[][] stationNeighbours;
+
+	/** (from node, to node) -> link, with linear probing */
+	private final long[] pairKeys;
+	private final int[] pairLinks;
+	private final int pairMask;
+
+	/**
+	 * Constructor: NetworkIndex
+	 * -------------------------
+	 * Indexes the nodes and links of the network and the station map.
+	 *
+	 * @param network
+	 * @param nodes_to_stations:
+	 *            the station of MATLAB node k at k - 1
+	 * @param stations_to_nodes:
+	 *            the MATLAB node that represents station s at s - 1
+	 */
+	public NetworkIndex(Network network, double[][] nodes_to_stations, double[][] stations_to_nodes) {
+		int numNodes = network.getNodes().size();
+		int numLinks = network.getLinks().size();
+		nodes = new Node[numNodes];
+		links = new Link[numLinks];
+		linkFrom = new int[numLinks];
+		linkTo = new int[numLinks];
+		firstOutLink = new int[numNodes + 1];
+		nodeNumber = new int[numNodes];
+		linkNumber = new int[numLinks];
+
+		nodeById = new HashMap<Id<Node>, Integer>(2 * numNodes);
+		linkById = new HashMap<Id<Link>, Integer>(2 * numLinks);
+		int maxNodeNumber = -1;
+		int n = 0;
+		for (Node node : network.getNodes().values()) {
+			nodes[n] = node;
+			nodeById.put(node.getId(), n);
+			nodeNumber[n] = parseNumber(node.getId().toString());
+			maxNodeNumber = Math.max(maxNodeNumber, nodeNumber[n]);
+			n++;
+		}
+		nodeByNumber = new int[maxNodeNumber + 1];
+		Arrays.fill(nodeByNumber, -1);
+		for (int i = 0; i < numNodes; i++) {
+			if (nodeNumber[i] >= 0) {
+				nodeByNumber[nodeNumber[i]] = i;
+			}
+		}
+
+		int capacity = Integer.highestOneBit(Math.max(2, 2 * numLinks) - 1) << 1;
+		pairKeys = new long[capacity];
+		pairLinks = new int[capacity];
+		pairMask = capacity - 1;
+		Arrays.fill(pairKeys, EMPTY);
+
+		// links are numbered in the order of the out-links of each node, so
+		// that of two parallel links the one a scan of getOutLinks() would
+		// find first is the one in the table
+		int maxLinkNumber = -1;
+		int l = 0;
+		for (int i = 0; i < numNodes; i++) {
+			firstOutLink[i] = l;
+			for (Link link : nodes[i].getOutLinks().values()) {
+				links[l] = link;
+				linkById.put(link.getId(), l);
+				linkFrom[l] = i;
+				linkTo[l] = nodeIndex(link.getToNode());
+				linkNumber[l] = parseNumber(link.getId().toString());
+				maxLinkNumber = Math.max(maxLinkNumber, linkNumber[l]);
+				putPair(linkFrom[l], linkTo[l], l);
+				l++;
+			}
+		}
+		firstOutLink[numNodes] = l;
+		linkByNumber = new int[maxLinkNumber + 1];
+		Arrays.fill(linkByNumber, -1);
+		for (int i = 0; i < l; i++) {
+			if (linkNumber[i] >= 0) {
+				linkByNumber[linkNumber[i]] = i;
+			}
+		}
+
+		int numStations = stations_to_nodes.length;
+		nodeToStation = new int[numNodes];
+		int[] stationSize = new int[numStations];
+		for (int i = 0; i < numNodes; i++) {
+			int number = nodeNumber[i];
+			if (number >= 1 && number <= nodes_to_stations.length) {
+				int station = (int) nodes_to_stations[number - 1][0];
+				if (station >= 1 && station <= numStations) {
+					nodeToStation[i] = station;
+					stationSize[station - 1]++;
+				}
+			}
+		}
+		int numInStations = 0;
+		for (int size : stationSize) {
+			numInStations += size;
+		}
+		nodesWithoutStation = numInStations < numNodes;
+		stationToNodes = new int[numStations][];
+		int[] representative = new int[numStations];
+		for (int s = 0; s < numStations; s++) {
+			representative[s] = nodeOfNumber((int) stations_to_nodes[s][0]);
+			boolean separate = representative[s] != -1 && nodeToStation[representative[s]] != s + 1;
+			stationToNodes[s] = new int[stationSize[s] + (separate ? 1 : 0)];
+			stationSize[s] = 0;
+			if (representative[s] != -1) {
+				stationToNodes[s][stationSize[s]++] = representative[s];
+			}
+		}
+		for (int i = 0; i < numNodes; i++) {
+			int station = nodeToStation[i];
+			if (station != 0 && representative[station - 1] != i) {
+				stationToNodes[station - 1][stationSize[station - 1]++] = i;
+			}
+		}
+
+		List<Set<Integer>> neighbours = new ArrayList<Set<Integer>>(numStations);
+		for (int s = 0; s < numStations; s++) {
+			neighbours.add(new TreeSet<Integer>());
+		}
+		for (int i = 0; i < l; i++) {
+			int from = nodeToStation[linkFrom[i]];
+			int to = nodeToStation[linkTo[i]];
+			if (from != 0 && to != 0 && from != to) {
+				neighbours.get(from - 1).add(to);
+			}
+		}
+		stationNeighbours = new int[numStations][];
+		for (int s = 0; s < numStations; s++) {
+			stationNeighbours[s] = new int[neighbours.get(s).size()];
+			int k = 0;
+			for (int to : neighbours.get(s)) {
+				stationNeighbours[s][k++] = to;
+			}
+		}
+	}
+
+	/**
+	 * Function load
+	 * -------------
+	 * Reads which nodes belong to which station from the station map .mat
+	 * file and indexes the network together with it.
+	 *
+	 * @param network
+	 * @param stationMap
+	 * @return the index of the network
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public static NetworkIndex load(Network network, String stationMap) throws FileNotFoundException, IOException {
+		MatFileReader matfilereader = new MatFileReader(stationMap);
+		MLDouble station_to_node = (MLDouble) matfilereader.getMLArray("stationstonodes");
+		MLDouble node_to_station = (MLDouble) matfilereader.getMLArray("nodestostations");
+		return new NetworkIndex(network, node_to_station.getArray(), station_to_node.getArray());
+	}
+
+	private static int parseNumber(String id) {
+		try {
+			return Integer.parseInt(id);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private void putPair(int from, int to, int link) {
+		long key = ((long) from << 32) | to;
+		int slot = hash(key) & pairMask;
+		while (pairKeys[slot] != EMPTY) {
+			if (pairKeys[slot] == key) {
+				return; // keep the first link between the two nodes
+			}
+			slot = (slot + 1) & pairMask;
+		}
+		pairKeys[slot] = key;
+		pairLinks[slot] = link;
+	}
+
+	/**
+	 * Function linkBetween
+	 * --------------------
+	 * @param from:
+	 *            index of the start node
+	 * @param to:
+	 *            index of the end node
+	 * @return the index of the link from one node to the other, or -1 if
+	 *         there is none.
+	 */
+	public int linkBetween(int from, int to) {
+		long key = ((long) from << 32) | to;
+		int slot = hash(key) & pairMask;
+		while (pairKeys[slot] != EMPTY) {
+			if (pairKeys[slot] == key) {
+				return pairLinks[slot];
+			}
+			slot = (slot + 1) & pairMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Function nodeIndex
+	 * ------------------
+	 * @param node
+	 * @return the index of the node, or -1 if it is not in the network.
+	 */
+	public int nodeIndex(Node node) {
+		Integer index = nodeById.get(node.getId());
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Function linkIndex
+	 * ------------------
+	 * @param link
+	 * @return the index of the link, or -1 if it is not in the network.
+	 */
+	public int linkIndex(Link link) {
+		Integer index = linkById.get(link.getId());
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Function nodeOfNumber
+	 * ---------------------
+	 * @param number:
+	 *            a MATLAB node number
+	 * @return the index of the node, or -1 if there is no such node.
+	 */
+	public int nodeOfNumber(int number) {
+		return number >= 0 && number < nodeByNumber.length ? nodeByNumber[number] : -1;
+	}
+
+	/**
+	 * Function linkOfNumber
+	 * ---------------------
+	 * @param number:
+	 *            a MATLAB link number
+	 * @return the index of the link, or -1 if there is no such link.
+	 */
+	public int linkOfNumber(int number) {
+		return number >= 0 && number < linkByNumber.length ? linkByNumber[number] : -1;
+	}
+
+	/**
+	 * Function stationOf
+	 * ------------------
+	 * @param node
+	 * @return the station (1-based) of the node, or 0 if it has none.
+	 */
+	public int stationOf(Node node) {
+		return nodeToStation[nodeIndex(node)];
+	}
+
+	/**
+	 * Function stationNode
+	 * --------------------
+	 * @param station:
+	 *            1-based station number
+	 * @return the node that represents the station.
+	 */
+	public Node stationNode(int station) {
+		return nodes[stationToNodes[station - 1][0]];
+	}
+
+	/**
+	 * Function stationNeighbours
+	 * --------------------------
+	 * @param station:
+	 *            1-based station number
+	 * @return the stations that a link goes to from the station.
+	 */
+	public int[] stationNeighbours(int station) {
+		return stationNeighbours[station - 1];
+	}
+
+	public int numStations() {
+		return stationToNodes.length;
+	}
+
+	/** @return whether some nodes are in no station (station 0) */
+	public boolean hasNodesWithoutStation() {
+		return nodesWithoutStation;
+	}
+
+	public int numNodes() {
+		return nodes.length;
+	}
+
+	public int numLinks() {
+		return links.length;
+	}
+
+	public Node getNode(int index) {
+		return nodes[index];
+	}
+
+	public Link getLink(int index) {
+		return links[index];
+	}
+
+	public int getNodeNumber(int index) {
+		return nodeNumber[index];
+	}
+
+	public int getLinkNumber(int index) {
+		return linkNumber[index];
+	}
+
+	public int getLinkFrom(int index) {
+		return linkFrom[index];
+	}
+
+	public int getLinkTo(int index) {
+		return linkTo[index];
+	}
+
+	/** @return the index of the first out-link of node index */
+	public int firstOutLink(int index) {
+		return firstOutLink[index];
+	}
+
+	/** @return the index after the last out-link of node index */
+	public int endOutLink(int index) {
+		return firstOutLink[index + 1];
+	}
+}
@@ -0,0 +1,66 @@
+import java.util.Arrays;
+
+/**
+ * Class: NodeHeap
+ *
+ * A binary heap of node indices by key, shared by the searches over the
+ * NetworkIndex (AMoDLandmarks, AMoDLandmarkRouter and AMoDDispatchSearch).
+ * Nodes are not moved up when their key drops, they are pushed again, and
+ * the searches skip the nodes they have already settled.
+ */
+class NodeHeap {
+	private double[] keys = new double[64];
+	private int[] items = new int[64];
+	private int size = 0;
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	void push(double key, int item) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * size);
+			items = Arrays.copyOf(items, 2 * size);
+		}
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (keys[parent] <= key) {
+				break;
+			}
+			keys[i] = keys[parent];
+			items[i] = items[parent];
+			i = parent;
+		}
+		keys[i] = key;
+		items[i] = item;
+	}
+
+	/** Removes and returns the item with the smallest key */
+	int pop() {
+		int top = items[0];
+		size--;
+		double key = keys[size];
+		int item = items[size];
+		int i = 0;
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && keys[child + 1] < keys[child]) {
+				child++;
+			}
+			if (keys[child] >= key) {
+				break;
+			}
+			keys[i] = keys[child];
+			items[i] = items[child];
+			i = child;
+		}
+		keys[i] = key;
+		items[i] = item;
+		return top;
+	}
+}
@@ -34,5 +34,11 @@ public class Pair<L,R> {
 		    return this.left.equals(pairo.getLeft()) &&
 		            this.right.equals(pairo.getRight());
 		  }
+		
+		@Override
+		public int hashCode() {
+			// must agree with equals, or pairs do not work as map keys
+			return 31 * left.hashCode() + right.hashCode();
+		}
 	}
 	
\ No newline at end of file
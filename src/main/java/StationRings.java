@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.matsim.contrib.dvrp.data.Vehicle;
+
+/**
+ * Class: StationRings
+ *
+ * The stations around a station, ring by ring: a ring is made of the
+ * neighbours of the stations of the ring before that are not in any
+ * ring yet. The AMoDDispatchFinder and the AMoDBatchDispatcher widen the
+ * rings around a request until they hold a vehicle for it.
+ */
+class StationRings {
+	private final NetworkIndex networkIndex;
+	/** allowed[s] is whether station s is in the rings (0 for no station) */
+	final boolean[] allowed;
+	/** The stations in the rings, ring by ring */
+	final List<Integer> stations = new ArrayList<Integer>();
+	/** How many rings there are around the first station */
+	int numRings = 0;
+	/** Where the last ring starts in stations */
+	private int lastRing = 0;
+	/** How many stations (other than 0) are in the rings */
+	private int numCovered = 0;
+
+	StationRings(NetworkIndex networkIndex, int station) {
+		this.networkIndex = networkIndex;
+		this.allowed = new boolean[networkIndex.numStations() + 1];
+		allowed[station] = true;
+		stations.add(station);
+		if (station != 0) {
+			numCovered++;
+		}
+	}
+
+	/** Adds the next ring, and returns whether it has any stations */
+	boolean widen() {
+		int end = stations.size();
+		for (int i = lastRing; i < end; i++) {
+			if (stations.get(i) == 0) {
+				continue;
+			}
+			for (int neighbour : networkIndex.stationNeighbours(stations.get(i))) {
+				if (!allowed[neighbour]) {
+					allowed[neighbour] = true;
+					stations.add(neighbour);
+					numCovered++;
+				}
+			}
+		}
+		lastRing = end;
+		if (stations.size() == end) {
+			return false;
+		}
+		numRings++;
+		return true;
+	}
+
+	/**
+	 * Whether the rings hold every station, and the nodes in no station
+	 * if there are any, so that searching the whole network would find
+	 * nothing more
+	 */
+	boolean coversAll() {
+		return numCovered == networkIndex.numStations()
+				&& (allowed[0] || !networkIndex.hasNodesWithoutStation());
+	}
+
+	/** The vehicles that can be dispatched from the stations of the rings */
+	List<Vehicle> getVehicles(AMoDVehicleIndex vehicleIndex) {
+		if (stations.size() == 1) {
+			return vehicleIndex.getVehicles(stations.get(0));
+		}
+		List<Vehicle> vehicles = new ArrayList<Vehicle>();
+		for (int station : stations) {
+			vehicles.addAll(vehicleIndex.getVehicles(station));
+		}
+		return vehicles;
+	}
+
+	/** Adds every station, and the nodes in no station */
+	void allowAll() {
+		Arrays.fill(allowed, true);
+		stations.clear();
+		for (int s = 0; s < allowed.length; s++) {
+			stations.add(s);
+		}
+		numCovered = networkIndex.numStations();
+	}
+}